@@ -71,8 +71,11 @@ public final class R {
         public static final int brush_chooser=0x7f0a001c;
         public static final int brush_current_size=0x7f0a0028;
         public static final int brush_sizer=0x7f0a0027;
+        public static final int bucket_fill=0x7f0a003b;
         public static final int button_table=0x7f0a001b;
         public static final int cancel=0x7f0a0011;
+        public static final int canvas_mode=0x7f0a0038;
+        public static final int canvas_size=0x7f0a003a;
         public static final int checkbox=0x7f0a002b;
         public static final int clear_canvas=0x7f0a0022;
         public static final int close_button=0x7f0a001a;
@@ -84,10 +87,12 @@ public final class R {
         public static final int emboss=0x7f0a0009;
         public static final int eraser=0x7f0a001e;
         public static final int gray=0x7f0a0014;
+        public static final int history_mode=0x7f0a0036;
         public static final int huge=0x7f0a0034;
         public static final int import_pic=0x7f0a0024;
         public static final int imported=0x7f0a0015;
         public static final int large=0x7f0a0033;
+        public static final int layers=0x7f0a0039;
         public static final int med=0x7f0a0032;
         public static final int more=0x7f0a002f;
         public static final int no_show=0x7f0a002c;
@@ -98,8 +103,10 @@ public final class R {
         public static final int picture=0x7f0a000e;
         public static final int prompt=0x7f0a002a;
         public static final int redo=0x7f0a0021;
+        public static final int render_mode=0x7f0a0037;
         public static final int round=0x7f0a0007;
         public static final int save=0x7f0a0013;
+        public static final int save_format=0x7f0a003c;
         public static final int seekbar=0x7f0a0026;
         public static final int send=0x7f0a0023;
         public static final int shaken=0x7f0a0025;
@@ -0,0 +1,84 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * A few screen sized bitmaps to borrow and give back. Each one is 8MB or more on a
+ * big screen, and making them over and over is what runs us out of memory. On low
+ * memory devices they're 16 bit instead. Newer Androids make 8888 whatever's asked
+ * for, so the config is whatever the bitmaps really come out as.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.ArrayList;
+import android.graphics.Bitmap;
+
+public class BitmapPool {
+	private ArrayList<Bitmap> free;
+	private int width, height;
+	private Bitmap.Config config;
+	//Most spare bitmaps to hang on to. More than that get recycled.
+	private int max;
+
+	public BitmapPool(int w, int h, Bitmap.Config c, int maxFree){
+		width = w; height = h;
+		max = maxFree;
+		free = new ArrayList<Bitmap>(maxFree);
+		//One now to see what we really get. It's the first one borrowed anyway.
+		Bitmap b = Bitmap.createBitmap(width, height, c);
+		config = b.getConfig();
+		free.add(b);
+	}
+
+	//Borrow a clear bitmap the size of the canvas.
+	public synchronized Bitmap acquire(){
+		int n = free.size();
+		if(n > 0){
+			Bitmap b = free.remove(n-1);
+			b.eraseColor(0);
+			return b;
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	//Give one back. Anything the wrong size just gets recycled.
+	public synchronized void release(Bitmap b){
+		if(b == null || b.isRecycled()){
+			return;
+		}
+		if(fits(b) && free.size() < max){
+			free.add(b);
+		}else{
+			b.recycle();
+		}
+	}
+
+	//True if b could have come from here.
+	public boolean fits(Bitmap b){
+		return b.getWidth() == width && b.getHeight() == height
+				&& b.getConfig() == config;
+	}
+
+	//What every bitmap from here really is, not just what was asked for.
+	public Bitmap.Config getConfig(){
+		return config;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * One shared paint for every history mark with the same settings. Most marks in a row
+ * use the same color and brush, so they don't each need their own Paint. A brush
+ * goes away by itself once no mark is using it.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import android.graphics.MaskFilter;
+import android.graphics.Paint;
+import android.graphics.PathEffect;
+import android.graphics.Xfermode;
+
+public final class Brush {
+	//Weak both ways. The brush holds its own key, so the entry lives as long as a
+	//mark holds the brush.
+	private static final WeakHashMap<Brush, WeakReference<Brush>> cache =
+			new WeakHashMap<Brush, WeakReference<Brush>>();
+	//For looking things up without making a new brush every time.
+	private static final Brush probe = new Brush();
+
+	private int color;
+	private float width;
+	private boolean fill;
+	private MaskFilter filter;
+	private PathEffect effect;
+	private Xfermode mode;
+
+	private Paint paint;
+
+	private Brush(){
+	}
+
+	//Get the shared brush for whatever paint is set to right now.
+	public static synchronized Brush of(Paint paint){
+		probe.setFrom(paint);
+		WeakReference<Brush> ref = cache.get(probe);
+		Brush brush = ref == null ? null : ref.get();
+		if(brush == null){
+			brush = new Brush();
+			brush.setFrom(paint);
+			brush.paint = new Paint(paint);
+			cache.put(brush, new WeakReference<Brush>(brush));
+		}
+		return brush;
+	}
+
+	//The paint to draw with. Shared, so don't change it.
+	public Paint getPaint(){
+		return paint;
+	}
+
+	private void setFrom(Paint p){
+		color = p.getColor();
+		width = p.getStrokeWidth();
+		fill = p.getStyle() == Paint.Style.FILL;
+		filter = p.getMaskFilter();
+		effect = p.getPathEffect();
+		mode = p.getXfermode();
+	}
+
+	@Override
+	public boolean equals(Object o){
+		if(!(o instanceof Brush)){
+			return false;
+		}
+		Brush b = (Brush) o;
+		return color == b.color && width == b.width && fill == b.fill
+				&& filter == b.filter && effect == b.effect && mode == b.mode;
+	}
+
+	@Override
+	public int hashCode(){
+		int h = color;
+		h = 31*h + Float.floatToIntBits(width);
+		h = 31*h + (fill ? 1 : 0);
+		h = 31*h + System.identityHashCode(filter);
+		h = 31*h + System.identityHashCode(effect);
+		h = 31*h + System.identityHashCode(mode);
+		return h;
+	}
+}
@@ -0,0 +1,510 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The layers' pixels on disk, so starting up can put them straight back instead of
+ * doing every mark again. Blurs and fills are slow to redo, tiles aren't.
+ *
+ * The drawing is cut into tiles and only the ones that changed since last time get
+ * written, compressed, on the end of the file. The front of the file is the index of
+ * where each tile is, memory mapped. There's two copies of it, written turn about,
+ * so a crash halfway through one still leaves the other. When the file is mostly
+ * old tiles it's written over fresh.
+ *
+ * The index also keeps how far into the journal the pixels go, so only what's after
+ * that gets drawn again.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+public class Checkpoint {
+	public static final int TILE = 256;
+
+	private static final int MAGIC = 0x46504332;	//FPC2
+	//Index copy is magic, seq, journal generation and count, layers, width, height,
+	//config, end of data, the active layer and every layer's look. Then offset and
+	//length of every tile, then a CRC.
+	private static final int HEAD = 52 + 4*Layers.MAX;
+	//Rewrite the file when the tiles in use are less than this much of it.
+	private static final int MIN_LIVE = 3;
+	private static final int SLACK = 1 << 20;
+
+	private File file;
+	private int width, height, cols, tiles;	//tiles is per layer
+	private Bitmap.Config config;
+
+	private int slotSize;
+	private long dataStart;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer header;
+
+	//Where every tile is. Length 0 is blank. Only write() changes these after open().
+	private int[] offsets, lengths;
+	private long seq, end;
+	private long generation;
+	private int count = -1, layers;
+	//Which layer's active, and each one's opacity, blend and if it's shown, so the
+	//journal doesn't need its layer changes from before.
+	private int active;
+	private int[] looks = new int[Layers.MAX];
+	//A write failed, so some tiles never made it. Saved from then on as unusable.
+	private boolean lost;
+
+	//Tiles changed since the last capture. Drawing thread only.
+	private boolean[] dirty;
+	private boolean anyDirty;
+
+	//Captured and waiting for write(). Guarded by this. Set with no bitmap is blank.
+	private Bitmap[] pending;
+	private boolean[] pendingSet;
+	private boolean hasPending;
+	private long pendingGeneration;
+	private int pendingCount, pendingLayers, pendingActive;
+	private int[] pendingLooks = new int[Layers.MAX];
+
+	//Only used by write().
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] packed = new byte[16*1024];
+	private byte[] slot;
+	private CRC32 crc = new CRC32();
+
+	private Rect src = new Rect(), dst = new Rect();
+
+	public Checkpoint(File f, int w, int h, Bitmap.Config c){
+		file = f;
+		width = w;
+		height = h;
+		config = c;
+		cols = (w + TILE - 1)/TILE;
+		tiles = cols*((h + TILE - 1)/TILE);
+		int n = Layers.MAX*tiles;
+		offsets = new int[n];
+		lengths = new int[n];
+		dirty = new boolean[n];
+		pending = new Bitmap[n];
+		pendingSet = new boolean[n];
+		slotSize = HEAD + n*8 + 4;
+		slot = new byte[slotSize];
+		dataStart = (2*slotSize + 4095) & ~4095L;
+		end = dataStart;
+	}
+
+	//Map the file and read the newer good index, if there is one. False if the file
+	//can't be used at all.
+	public boolean open(){
+		try{
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			if(raf.length() < dataStart){
+				raf.setLength(dataStart);
+			}
+			header = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2*slotSize);
+		}catch(IOException e){
+			Log.e("Checkpoint", "Can't open the checkpoint", e);
+			return false;
+		}
+		long newest = -1;
+		for(int s=0; s<2; s++){
+			header.position(s*slotSize);
+			header.get(slot);
+			ByteBuffer b = ByteBuffer.wrap(slot);
+			crc.reset();
+			crc.update(slot, 0, slotSize - 4);
+			if(b.getInt(0) != MAGIC || b.getInt(slotSize - 4) != (int)crc.getValue()
+					|| b.getInt(28) != width || b.getInt(32) != height
+					|| b.getInt(36) != config.ordinal() || b.getLong(4) <= newest){
+				continue;
+			}
+			newest = b.getLong(4);
+			b.position(12);
+			generation = b.getLong();
+			count = b.getInt();
+			layers = b.getInt();
+			b.position(40);
+			end = b.getLong();
+			active = b.getInt();
+			for(int i=0; i<Layers.MAX; i++){
+				looks[i] = b.getInt();
+			}
+			for(int i=0; i<offsets.length; i++){
+				offsets[i] = b.getInt();
+				lengths[i] = b.getInt();
+			}
+		}
+		seq = Math.max(newest, 0);
+		return true;
+	}
+
+	//Journal generation and how many of its records the pixels have in them. Count
+	//is -1 if nothing was saved.
+	public long getGeneration(){
+		return generation;
+	}
+
+	public int getCount(){
+		return count;
+	}
+
+	//Put the saved tiles on the layers, adding layers if there aren't enough, and
+	//how they looked. On start, before anything's written.
+	public void restore(Layers l){
+		if(count < 0){
+			return;
+		}
+		while(l.getCount() < layers && l.add() >= 0){
+		}
+		for(int i=0; i<Math.min(layers, l.getCount()); i++){
+			l.setOpacity(i, looks[i] & 0xff);
+			l.setMode(i, (looks[i] >> 8) & 0xff);
+			l.setVisible(i, (looks[i] & 0x10000) != 0);
+		}
+		if(active < l.getCount()){
+			l.setActive(active);
+		}
+		MappedByteBuffer data;
+		try{
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+		}catch(IOException e){
+			Log.e("Checkpoint", "Can't map the checkpoint", e);
+			return;
+		}
+		Paint copy = new Paint();
+		copy.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+		Inflater inflater = new Inflater();
+		Bitmap full = Bitmap.createBitmap(TILE, TILE, config);
+		byte[] raw = new byte[full.getRowBytes()*TILE];
+		int n = Math.min(layers, l.getCount());
+		for(int layer=0; layer<n; layer++){
+			Canvas canvas = l.getCanvas(layer);
+			for(int t=0; t<tiles; t++){
+				int i = layer*tiles + t;
+				if(lengths[i] == 0 || offsets[i] + lengths[i] > end){
+					continue;
+				}
+				tileRect(t, src);
+				Bitmap tile = src.width() == TILE && src.height() == TILE ? full
+						: Bitmap.createBitmap(src.width(), src.height(), config);
+				int size = tile.getRowBytes()*tile.getHeight();
+				if(packed.length < lengths[i]){
+					packed = new byte[lengths[i]];
+				}
+				data.position(offsets[i]);
+				data.get(packed, 0, lengths[i]);
+				inflater.reset();
+				inflater.setInput(packed, 0, lengths[i]);
+				int got = 0;
+				try{
+					int r;
+					while(got < size && (r = inflater.inflate(raw, got, size - got)) > 0){
+						got += r;
+					}
+				}catch(DataFormatException e){
+					got = -1;
+				}
+				if(got == size){
+					tile.copyPixelsFromBuffer(ByteBuffer.wrap(raw, 0, size));
+					canvas.drawBitmap(tile, src.left, src.top, copy);
+				}
+				if(tile != full){
+					tile.recycle();
+				}
+			}
+			l.changed(layer);
+		}
+		full.recycle();
+		inflater.end();
+	}
+
+	//Pixels on layer changed under area. Drawing thread.
+	public void dirty(int layer, RectF area){
+		if(layer < 0 || area.isEmpty() || area.right <= 0 || area.bottom <= 0
+				|| area.left >= width || area.top >= height){
+			return;
+		}
+		int left = Math.max(0, (int)area.left)/TILE;
+		int top = Math.max(0, (int)area.top)/TILE;
+		int right = (Math.min(width, (int)Math.ceil(area.right)) - 1)/TILE;
+		int bottom = (Math.min(height, (int)Math.ceil(area.bottom)) - 1)/TILE;
+		for(int ty=top; ty<=bottom; ty++){
+			for(int tx=left; tx<=right; tx++){
+				dirty[layer*tiles + ty*cols + tx] = true;
+			}
+		}
+		anyDirty = true;
+	}
+
+	//The whole drawing is blank now.
+	public void clear(){
+		for(int l=0; l<Layers.MAX; l++){
+			clear(l);
+		}
+	}
+
+	//Layer is blank now. Drawing thread.
+	public synchronized void clear(int layer){
+		for(int i=layer*tiles; i<(layer+1)*tiles; i++){
+			dirty[i] = false;
+			if(pending[i] != null){
+				pending[i].recycle();
+				pending[i] = null;
+			}
+			pendingSet[i] = true;
+		}
+		hasPending = true;
+	}
+
+	//Copy the changed tiles off the layers, with where the journal is. On the drawing
+	//thread, it's quick. True if there's something for write().
+	public synchronized boolean capture(Layers l, long gen, int cnt){
+		int n = l.getCount();
+		pendingGeneration = gen;
+		pendingCount = cnt;
+		pendingLayers = n;
+		pendingActive = l.getActive();
+		for(int i=0; i<n; i++){
+			pendingLooks[i] = l.getOpacity(i) | l.getMode(i) << 8
+					| (l.isVisible(i) ? 0x10000 : 0);
+		}
+		if(anyDirty){
+			for(int i=0; i<dirty.length; i++){
+				if(!dirty[i]){
+					continue;
+				}
+				dirty[i] = false;
+				if(i/tiles >= n){
+					continue;
+				}
+				if(pending[i] != null){
+					pending[i].recycle();
+				}
+				pending[i] = copy(l.getBitmap(i/tiles), i%tiles);
+				pendingSet[i] = true;
+				hasPending = true;
+			}
+			anyDirty = false;
+		}
+		return hasPending;
+	}
+
+	//Compress and write what capture() got, then switch the index over. I/O thread.
+	public void write() throws IOException {
+		Bitmap[] todo;
+		boolean[] set;
+		synchronized(this){
+			if(!hasPending){
+				return;
+			}
+			todo = pending.clone();
+			set = pendingSet.clone();
+			Arrays.fill(pending, null);
+			Arrays.fill(pendingSet, false);
+			hasPending = false;
+			generation = pendingGeneration;
+			count = lost ? -1 : pendingCount;
+			layers = pendingLayers;
+			active = pendingActive;
+			System.arraycopy(pendingLooks, 0, looks, 0, Layers.MAX);
+		}
+		try{
+			put(todo, set);
+		}catch(IOException e){
+			lost = true;
+			throw e;
+		}
+		fillSlot();
+		header.position((int)(seq & 1)*slotSize);
+		header.put(slot);
+		header.force();
+
+		long live = 0;
+		for(int len : lengths){
+			live += len;
+		}
+		if(end - dataStart > live*MIN_LIVE + SLACK){
+			compact();
+		}
+	}
+
+	//Compress the set tiles onto the end of the file and sync it. Blank ones just
+	//get length 0.
+	private void put(Bitmap[] todo, boolean[] set) throws IOException {
+		ByteBuffer raw = null;
+		for(int i=0; i<todo.length; i++){
+			if(!set[i]){
+				continue;
+			}
+			Bitmap tile = todo[i];
+			if(tile == null){
+				offsets[i] = 0;
+				lengths[i] = 0;
+				continue;
+			}
+			int size = tile.getRowBytes()*tile.getHeight();
+			if(raw == null || raw.capacity() < size){
+				raw = ByteBuffer.allocate(size);
+			}
+			raw.clear();
+			tile.copyPixelsToBuffer(raw);
+			tile.recycle();
+			int len = deflate(raw.array(), size);
+			writeFully(channel, ByteBuffer.wrap(packed, 0, len), end);
+			offsets[i] = (int)end;
+			lengths[i] = len;
+			end += len;
+		}
+		channel.force(false);
+	}
+
+	//Done with the file. I/O thread, after the last write().
+	public void close(){
+		try{
+			raf.close();
+		}catch(IOException e){
+			//Nothing to do about it
+		}
+		deflater.end();
+	}
+
+	//Write the tiles in use to a new file, one after another, with the index, and
+	//swap it in. If it goes wrong the old file's still fine.
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		int[] moved = new int[offsets.length];
+		long at = dataStart;
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		try{
+			out.setLength(0);
+			out.setLength(dataStart);
+			FileChannel to = out.getChannel();
+			for(int i=0; i<offsets.length; i++){
+				if(lengths[i] == 0){
+					continue;
+				}
+				ByteBuffer b = ByteBuffer.allocate(lengths[i]);
+				while(b.hasRemaining()){
+					if(channel.read(b, offsets[i] + b.position()) < 0){
+						throw new IOException("Checkpoint is short");
+					}
+				}
+				b.flip();
+				writeFully(to, b, at);
+				moved[i] = (int)at;
+				at += lengths[i];
+			}
+			int[] old = offsets;
+			long oldEnd = end;
+			offsets = moved;
+			end = at;
+			fillSlot();
+			offsets = old;
+			end = oldEnd;
+			writeFully(to, ByteBuffer.wrap(slot), (seq & 1)*slotSize);
+			to.force(false);
+		}finally{
+			out.close();
+		}
+		raf.close();
+		boolean swapped = tmp.renameTo(file);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2*slotSize);
+		if(!swapped){
+			tmp.delete();
+			throw new IOException("Can't replace the checkpoint");
+		}
+		offsets = moved;
+		end = at;
+	}
+
+	//The next copy of the index, in slot. Bumps seq.
+	private void fillSlot(){
+		ByteBuffer b = ByteBuffer.wrap(slot);
+		b.putInt(MAGIC).putLong(++seq).putLong(generation).putInt(count).putInt(layers)
+				.putInt(width).putInt(height).putInt(config.ordinal()).putLong(end)
+				.putInt(active);
+		for(int look : looks){
+			b.putInt(look);
+		}
+		for(int i=0; i<offsets.length; i++){
+			b.putInt(offsets[i]);
+			b.putInt(lengths[i]);
+		}
+		crc.reset();
+		crc.update(slot, 0, slotSize - 4);
+		b.putInt((int)crc.getValue());
+	}
+
+	//Compress n bytes of raw into packed. Returns the length.
+	private int deflate(byte[] raw, int n){
+		deflater.reset();
+		deflater.setInput(raw, 0, n);
+		deflater.finish();
+		int len = 0;
+		while(!deflater.finished()){
+			if(len == packed.length){
+				packed = Arrays.copyOf(packed, packed.length*2);
+			}
+			len += deflater.deflate(packed, len, packed.length - len);
+		}
+		return len;
+	}
+
+	//Its own bitmap of tile t of layer.
+	private Bitmap copy(Bitmap layer, int t){
+		tileRect(t, src);
+		dst.set(0, 0, src.width(), src.height());
+		Bitmap b = Bitmap.createBitmap(src.width(), src.height(), config);
+		new Canvas(b).drawBitmap(layer, src, dst, null);
+		return b;
+	}
+
+	private void tileRect(int t, Rect r){
+		int x = (t % cols)*TILE, y = (t / cols)*TILE;
+		r.set(x, y, Math.min(x + TILE, width), Math.min(y + TILE, height));
+	}
+
+	private static void writeFully(FileChannel ch, ByteBuffer b, long at) throws IOException {
+		while(b.hasRemaining()){
+			at += ch.write(b, at);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * What the dropper looks at. A copy of the whole picture, background and every
+ * layer, the way it looks on screen. It's only made when the dropper needs it after
+ * something changed, then dragging around just reads the array, no getPixel calls.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import android.graphics.Bitmap;
+
+public class ColorSampler {
+	private int[] pixels;
+	private int width, height;
+	//Something changed since the copy was made. Set from any thread.
+	private volatile boolean stale = true;
+
+	public ColorSampler(int w, int h){
+		width = w;
+		height = h;
+	}
+
+	//The picture changed, make the copy again next time.
+	public void invalidate(){
+		stale = true;
+	}
+
+	public boolean isStale(){
+		return stale;
+	}
+
+	//Take the copy from composite, which is the whole picture.
+	public void update(Bitmap composite){
+		stale = false;	//First, so a change while copying makes it stale again
+		if(pixels == null){
+			pixels = new int[width*height];
+		}
+		composite.getPixels(pixels, 0, width, 0, 0, width, height);
+	}
+
+	//True if any of the size by size square around x, y is on the picture.
+	public boolean covers(int x, int y, int size){
+		int half = size/2;
+		return x + half >= 0 && x - half < width && y + half >= 0 && y - half < height;
+	}
+
+	//Average color of the size by size square around x, y. The part off the edge
+	//doesn't count. Check covers() first, 0 means nothing was there.
+	public int sample(int x, int y, int size){
+		if(!covers(x, y, size)){
+			return 0;
+		}
+		int half = size/2;
+		int left = Math.max(0, x - half), right = Math.min(width-1, x + half);
+		int top = Math.max(0, y - half), bottom = Math.min(height-1, y + half);
+		int a = 0, r = 0, g = 0, b = 0;
+		for(int sy=top; sy<=bottom; sy++){
+			for(int sx=left; sx<=right; sx++){
+				int c = pixels[sy*width + sx];
+				a += c >>> 24;
+				r += (c >> 16) & 0xff;
+				g += (c >> 8) & 0xff;
+				b += c & 0xff;
+			}
+		}
+		int n = (right-left+1)*(bottom-top+1);
+		return ((a/n) << 24) | ((r/n) << 16) | ((g/n) << 8) | (b/n);
+	}
+}
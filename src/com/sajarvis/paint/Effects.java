@@ -0,0 +1,134 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The brush effects, made once and shared. Filters and modes can't be looked inside,
+ * so anything that writes a paint to disk goes by which one of these it is.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import android.graphics.BlurMaskFilter;
+import android.graphics.DashPathEffect;
+import android.graphics.EmbossMaskFilter;
+import android.graphics.MaskFilter;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Xfermode;
+
+public final class Effects {
+	public static final MaskFilter EMBOSS =
+			new EmbossMaskFilter(new float[] { 1, 1, 1 },0.4f, 6, 3.5f);
+	public static final MaskFilter BLUR = new BlurMaskFilter(8, BlurMaskFilter.Blur.NORMAL);
+	public static final PorterDuffXfermode BLENDY =
+			new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
+	public static final PorterDuffXfermode ERASER =
+			new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+	//Bucket fills replace what's there, see-through colors and all.
+	public static final PorterDuffXfermode FILL =
+			new PorterDuffXfermode(PorterDuff.Mode.SRC);
+	private static final float[] DASH_ON_OFF = {10, 40};
+	private static final float DASH_PHASE = 1;
+	public static final DashPathEffect DASH = new DashPathEffect(DASH_ON_OFF, DASH_PHASE);
+
+	private Effects(){
+	}
+
+	//DASH for a piece of path that starts distance along the mark, so the dashes
+	//line up with the pieces before it.
+	public static DashPathEffect dashFrom(float distance){
+		return new DashPathEffect(DASH_ON_OFF,
+				(DASH_PHASE + distance) % (DASH_ON_OFF[0] + DASH_ON_OFF[1]));
+	}
+
+	//The paint every mark starts from.
+	public static Paint newPaint(){
+		Paint p = new Paint();
+		p.setAntiAlias(true);
+		p.setDither(true);
+		p.setStrokeJoin(Paint.Join.ROUND);
+		p.setStrokeCap(Paint.Cap.ROUND);
+		return p;
+	}
+
+	//Write the parts of a paint that change between marks.
+	public static void write(Paint p, DataOutput out) throws IOException {
+		out.writeInt(p.getColor());
+		out.writeFloat(p.getStrokeWidth());
+		out.writeByte(p.getStyle() == Paint.Style.FILL ? 1 : 0);
+		out.writeByte(filterCode(p.getMaskFilter()));
+		out.writeByte(p.getPathEffect() == DASH ? 1 : 0);
+		out.writeByte(modeCode(p.getXfermode()));
+	}
+
+	//Read back what write() wrote.
+	public static Paint read(DataInput in) throws IOException {
+		Paint p = newPaint();
+		p.setColor(in.readInt());
+		p.setStrokeWidth(in.readFloat());
+		p.setStyle(in.readByte() == 1 ? Paint.Style.FILL : Paint.Style.STROKE);
+		p.setMaskFilter(filter(in.readByte()));
+		p.setPathEffect(in.readByte() == 1 ? DASH : null);
+		p.setXfermode(mode(in.readByte()));
+		return p;
+	}
+
+	public static int filterCode(MaskFilter f){
+		if(f == EMBOSS){
+			return 1;
+		}else if(f == BLUR){
+			return 2;
+		}
+		return 0;
+	}
+
+	public static MaskFilter filter(int code){
+		switch(code){
+		case 1: return EMBOSS;
+		case 2: return BLUR;
+		}
+		return null;
+	}
+
+	public static int modeCode(Xfermode x){
+		if(x == ERASER){
+			return 1;
+		}else if(x == BLENDY){
+			return 2;
+		}else if(x == FILL){
+			return 3;
+		}
+		return 0;
+	}
+
+	public static Xfermode mode(int code){
+		switch(code){
+		case 1: return ERASER;
+		case 2: return BLENDY;
+		case 3: return FILL;
+		}
+		return null;
+	}
+}
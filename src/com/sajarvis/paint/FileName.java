@@ -50,7 +50,7 @@ public class FileName extends Activity{
 		cancel = (Button) findViewById(R.id.cancel);
 
 		//Get the app dir name
-		Bundle extras = getIntent().getExtras();
+		final Bundle extras = getIntent().getExtras();
 
 		//Get external file path to check if file exists.
 		//Gets the directory of local storage.
@@ -62,7 +62,7 @@ public class FileName extends Activity{
 			public void onClick(View v){
 				String name = text.getText().toString();
 				if(!name.equals("")){
-					File file = new File(completeDir,name.concat(".jpeg"));
+					File file = new File(completeDir,name.concat(extras.getString("ext")));
 					if(!file.exists()){
 						intent.putExtra("FileName", text.getText().toString());
 						setResult(RESULT_OK,intent);
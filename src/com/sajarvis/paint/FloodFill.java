@@ -0,0 +1,207 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The bucket. The bitmap is read once into an array and filled a whole row span at
+ * a time, with a stack of spans to look at instead of recursion. Only the box around
+ * what got filled is written back, by paint(), so undo can keep it first. The filled
+ * area is also turned into rects, rows with the same span stacked into one, so
+ * history can keep the fill as just those.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.Arrays;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+public class FloodFill {
+	//Kept between fills, they're screen sized.
+	private int[] pixels;
+	private boolean[] filled;
+	//Seeds still to look at, x then y.
+	private int[] seeds = new int[256];
+	private int seedCount;
+	//Rects of the last fill, left, top, right, bottom.
+	private int[] rects = new int[256];
+	private int rectCount;
+	//Rects that reached the row above and the row being done, left to right.
+	private int[] open, next;
+	//Box around the last fill.
+	private Rect box = new Rect();
+
+	private int w, h;
+	private int target, tolerance;
+
+	//Find the area around x, y on bmp that's within tolerance of the color there.
+	//Tolerance is the most any one channel can be off, 0 to 255. Returns the rects
+	//of the area, or null if it's off the bitmap. Nothing changes until paint().
+	public int[] find(Bitmap bmp, int x, int y, int tol){
+		w = bmp.getWidth();
+		h = bmp.getHeight();
+		if(x < 0 || y < 0 || x >= w || y >= h){
+			return null;
+		}
+		if(pixels == null || pixels.length != w*h){
+			pixels = new int[w*h];
+			filled = new boolean[w*h];
+		}
+		bmp.getPixels(pixels, 0, w, 0, 0, w, h);
+		target = pixels[y*w + x];
+		tolerance = tol;
+
+		box.set(x, y, x+1, y+1);
+		seedCount = 0;
+		push(x, y);
+		while(seedCount > 0){
+			seedCount--;
+			int sy = seeds[seedCount*2 + 1];
+			int row = sy*w;
+			int left = seeds[seedCount*2];
+			if(filled[row + left] || !matches(pixels[row + left])){
+				continue;
+			}
+			//Out as far as it goes both ways.
+			int right = left;
+			while(left > 0 && !filled[row + left - 1] && matches(pixels[row + left - 1])){
+				left--;
+			}
+			while(right < w-1 && !filled[row + right + 1] && matches(pixels[row + right + 1])){
+				right++;
+			}
+			for(int i=row+left; i<=row+right; i++){
+				filled[i] = true;
+			}
+			box.union(left, sy, right+1, sy+1);
+			if(sy > 0){
+				seedRow(sy-1, left, right);
+			}
+			if(sy < h-1){
+				seedRow(sy+1, left, right);
+			}
+		}
+
+		//Make the rects, and put filled back for next time.
+		if(open == null || open.length < w+1){
+			open = new int[w+1];
+			next = new int[w+1];
+		}
+		rectCount = 0;
+		int openCount = 0;
+		for(int ry=box.top; ry<box.bottom; ry++){
+			int row = ry*w;
+			int nextCount = 0;
+			int o = 0;
+			int rx = box.left;
+			while(rx < box.right){
+				if(!filled[row + rx]){
+					rx++;
+					continue;
+				}
+				int start = rx;
+				while(rx < box.right && filled[row + rx]){
+					filled[row + rx] = false;
+					rx++;
+				}
+				//Same span as a rect from the row above, that rect just gets taller.
+				while(o < openCount && rects[open[o]*4] < start){
+					o++;
+				}
+				if(o < openCount && rects[open[o]*4] == start && rects[open[o]*4 + 2] == rx){
+					rects[open[o]*4 + 3] = ry+1;
+					next[nextCount++] = open[o++];
+				}else{
+					next[nextCount++] = rectCount;
+					addRect(start, ry, rx, ry+1);
+				}
+			}
+			int[] t = open;
+			open = next;
+			next = t;
+			openCount = nextCount;
+		}
+		return Arrays.copyOf(rects, rectCount*4);
+	}
+
+	//Fill what the last find() found on bmp with color. Only the box around it
+	//gets written.
+	public void paint(Bitmap bmp, int color){
+		for(int r=0; r<rectCount; r++){
+			int right = rects[r*4 + 2];
+			for(int ry=rects[r*4 + 1]; ry<rects[r*4 + 3]; ry++){
+				Arrays.fill(pixels, ry*w + rects[r*4], ry*w + right, color);
+			}
+		}
+		bmp.setPixels(pixels, box.top*w + box.left, w, box.left, box.top,
+				box.width(), box.height());
+	}
+
+	//Box around the last fill.
+	public Rect getBounds(){
+		return box;
+	}
+
+	//Put the spots on row y between left and right that start a run worth filling.
+	private void seedRow(int y, int left, int right){
+		int row = y*w;
+		boolean inRun = false;
+		for(int x=left; x<=right; x++){
+			boolean ok = !filled[row + x] && matches(pixels[row + x]);
+			if(ok && !inRun){
+				push(x, y);
+			}
+			inRun = ok;
+		}
+	}
+
+	private boolean matches(int c){
+		if(c == target){
+			return true;
+		}
+		if(tolerance == 0){
+			return false;
+		}
+		return Math.abs((c >>> 24) - (target >>> 24)) <= tolerance
+				&& Math.abs(((c >> 16) & 0xff) - ((target >> 16) & 0xff)) <= tolerance
+				&& Math.abs(((c >> 8) & 0xff) - ((target >> 8) & 0xff)) <= tolerance
+				&& Math.abs((c & 0xff) - (target & 0xff)) <= tolerance;
+	}
+
+	private void push(int x, int y){
+		if(seedCount*2 == seeds.length){
+			seeds = Arrays.copyOf(seeds, seeds.length*2);
+		}
+		seeds[seedCount*2] = x;
+		seeds[seedCount*2 + 1] = y;
+		seedCount++;
+	}
+
+	private void addRect(int l, int t, int r, int b){
+		if(rectCount*4 == rects.length){
+			rects = Arrays.copyOf(rects, rects.length*2);
+		}
+		rects[rectCount*4] = l;
+		rects[rectCount*4 + 1] = t;
+		rects[rectCount*4 + 2] = r;
+		rects[rectCount*4 + 3] = b;
+		rectCount++;
+	}
+}
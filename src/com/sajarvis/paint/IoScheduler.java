@@ -0,0 +1,190 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Saving, sharing and importing, off the UI thread. One thread does them one at a
+ * time, most important first: saves, then imports, then autosaves. A job has a
+ * key, and a new job with the same key replaces one still waiting, so saving twice
+ * in a row only writes the newer one. When a job's done the UI thread hears about it.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+public class IoScheduler {
+	//Lower goes first.
+	public static final int SAVE = 0;
+	public static final int IMPORT = 1;
+	public static final int AUTOSAVE = 2;
+
+	//Something to do off the UI thread. run() is on the I/O thread, the rest are on
+	//the UI thread.
+	public static abstract class Job {
+		private int priority;
+		private String key;
+		private long order;	//Same priority goes in the order they came
+
+		public Job(int priority, String key){
+			this.priority = priority;
+			this.key = key;
+		}
+
+		//The slow part.
+		protected abstract void run() throws Exception;
+		//run() worked.
+		protected void done(){
+		}
+		//run() threw.
+		protected void failed(Exception e){
+		}
+		//After done() or failed(), or if a newer job replaced this one before it ran.
+		//For giving back bitmaps and such.
+		protected void finish(){
+		}
+	}
+
+	private final PriorityQueue<Job> queue = new PriorityQueue<Job>(8,
+			new Comparator<Job>(){
+				@Override
+				public int compare(Job a, Job b) {
+					if(a.priority != b.priority){
+						return a.priority < b.priority ? -1 : 1;
+					}
+					return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+				}
+			});
+	private long submitted;
+	private boolean stopping;
+
+	private final Handler ui = new Handler(Looper.getMainLooper());
+	private final Thread worker;
+
+	public IoScheduler(){
+		worker = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				work();
+			}
+		}, "io");
+		//Low so it never fights the drawing for the cores.
+		worker.setPriority(Thread.MIN_PRIORITY + 1);
+		worker.start();
+	}
+
+	//Queue job. A job with the same key that hasn't started is dropped. After
+	//shutdown() it isn't run, it just gets failed() and finish().
+	public void submit(final Job job){
+		Job replaced = null;
+		synchronized(queue){
+			if(stopping){
+				//The thread might be gone already. Still give back what it holds.
+				ui.post(new Runnable(){
+					@Override
+					public void run() {
+						try{
+							job.failed(new IllegalStateException("IoScheduler is shut down"));
+						}finally{
+							job.finish();
+						}
+					}
+				});
+				return;
+			}
+			Iterator<Job> it = queue.iterator();
+			while(it.hasNext()){
+				Job j = it.next();
+				if(j.key.equals(job.key)){
+					replaced = j;
+					it.remove();
+					break;
+				}
+			}
+			job.order = submitted++;
+			queue.add(job);
+			queue.notify();
+		}
+		if(replaced != null){
+			//On the UI thread like any other finish, whoever submitted.
+			final Job gone = replaced;
+			ui.post(new Runnable(){
+				@Override
+				public void run() {
+					gone.finish();
+				}
+			});
+		}
+	}
+
+	//No more jobs. The ones waiting still get done, then the thread ends.
+	public void shutdown(){
+		synchronized(queue){
+			stopping = true;
+			queue.notify();
+		}
+	}
+
+	private void work(){
+		while(true){
+			final Job job;
+			synchronized(queue){
+				while(queue.isEmpty() && !stopping){
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if(queue.isEmpty()){
+					return;	//Stopping and nothing left
+				}
+				job = queue.poll();
+			}
+			Exception error = null;
+			try{
+				job.run();
+			}catch(Exception e){
+				Log.e("IoScheduler", "Job failed", e);
+				error = e;
+			}
+			final Exception fError = error;
+			ui.post(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						if(fError == null){
+							job.done();
+						}else{
+							job.failed(fError);
+						}
+					}finally{
+						job.finish();
+					}
+				}
+			});
+		}
+	}
+}
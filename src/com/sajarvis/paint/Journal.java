@@ -0,0 +1,630 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Everything done to the drawing, written down as it happens so a crash doesn't
+ * lose it. Marks, undo, redo, clear and layer changes go on the end of a file, and
+ * next time the app starts they're done again in order. Clear starts the file over.
+ *
+ * A mark is only its brush, if that changed, and its points as small differences
+ * from the point before, in eighths of a pixel. Each record has its length in front
+ * and a CRC behind, so a half written one at the end is just dropped. Writing and
+ * syncing happen on their own thread, a batch at a time.
+ *
+ * The file starts with a random generation, new every clear, and records are
+ * counted, so a Checkpoint can say which records its pixels already have. Those only
+ * go in the history on start, they don't get drawn again.
+ *
+ * Once a checkpoint is safely on disk the file is started over as a new generation
+ * too, with a record saying which checkpoint it goes on top of, so start up only
+ * has what came after it. Undo can't go back past that after a restart.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import android.graphics.Paint;
+import android.util.Log;
+
+public class Journal {
+	//What gets done again on start.
+	public interface Player {
+		void mark(PathPaint pp);
+		void undo();
+		void redo();
+		void layer(int op);
+		//Past the records the checkpoint has, true if it's being used. Those only
+		//went in the history, draw from now on. Cut if the file starts from the
+		//checkpoint instead of a blank drawing. Called once, always.
+		void caughtUp(boolean checkpoint, boolean cut);
+	}
+
+	private static final byte[] MAGIC = {'F', 'P', 'J', '2'};
+	//Magic, then the generation.
+	private static final int HEADER = MAGIC.length + 8;
+
+	//Record types.
+	private static final int BRUSH = 1;
+	private static final int STROKE = 2;
+	private static final int FILL = 3;
+	private static final int UNDO = 4;
+	private static final int REDO = 5;
+	private static final int CLEAR = 6;
+	private static final int LAYER = 7;
+	//First in a file that was started over from a checkpoint. Its generation and
+	//count. Not counted.
+	private static final int BASE = 8;
+
+	//Points are kept to an eighth of a pixel.
+	private static final float SCALE = 8;
+	//Longest a record waits to be written, ms. A batch goes sooner if it gets big.
+	private static final long MAX_DELAY = 250;
+	private static final int MAX_BATCH = 32;
+
+	private static class Record {
+		int type;
+		PathPaint pp;
+		int op;
+		long generation;	//For clear and rebase
+		long previous;	//Rebase, the checkpoint's generation. op is its count.
+	}
+
+	private File file;
+	private FileOutputStream out;
+
+	//Waiting for the writer. Guarded by itself.
+	private final ArrayList<Record> pending = new ArrayList<Record>();
+	private boolean flushNow, closing;
+	private Thread writer;
+	//Which file this is and how many records are in it. Also guarded by pending.
+	private long generation;
+	private int count;
+
+	//Only touched by the writer thread.
+	private Paint lastBrush;
+	private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	private ByteArrayOutputStream payload = new ByteArrayOutputStream();
+	private DataOutputStream data = new DataOutputStream(payload);
+	private CRC32 crc = new CRC32();
+
+	public Journal(File f){
+		file = f;
+	}
+
+	//Do what's in the file again, then get ready to add to it. Anything after a
+	//broken record is cut off. If the file is generation gen, the first saved
+	//records are already drawn by a checkpoint. Saved is -1 if there's no checkpoint.
+	//False if the journal can't be used.
+	public boolean open(Player player, long gen, int saved){
+		int good = replay(player, gen, saved);
+		try{
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				if(good == 0){
+					generation = new Random().nextLong();
+					count = 0;
+					raf.setLength(0);
+					raf.write(MAGIC);
+					raf.writeLong(generation);
+				}else{
+					raf.setLength(good);
+				}
+			}finally{
+				raf.close();
+			}
+			out = new FileOutputStream(file, true);
+		}catch(IOException e){
+			Log.e("Journal", "Can't open the journal", e);
+			return false;
+		}
+		writer = new Thread(new Runnable(){
+			@Override
+			public void run() {
+				work();
+			}
+		}, "journal");
+		writer.setPriority(Thread.MIN_PRIORITY + 1);
+		writer.start();
+		return true;
+	}
+
+	//A mark went in the history.
+	public void mark(PathPaint pp){
+		Record r = new Record();
+		r.type = pp.getRects() != null ? FILL : STROKE;
+		r.pp = pp;
+		add(r);
+	}
+
+	public void undo(){
+		add(UNDO, 0);
+	}
+
+	public void redo(){
+		add(REDO, 0);
+	}
+
+	//Starts the file over, as a new generation.
+	public void clear(){
+		synchronized(pending){
+			Record r = new Record();
+			r.type = CLEAR;
+			r.generation = generation = new Random().nextLong();
+			add(r);
+			count = 0;
+		}
+	}
+
+	public void layer(int op){
+		add(LAYER, op);
+	}
+
+	//The checkpoint has the first n records of generation gen safely written. If
+	//nothing came after, start a new file on top of it so the next start doesn't
+	//go through them again.
+	public void rebase(long gen, int n){
+		synchronized(pending){
+			if(gen != generation || n != count || n == 0){
+				return;	//Already new, or more to save first
+			}
+			Record r = new Record();
+			r.type = BASE;
+			r.generation = generation = new Random().nextLong();
+			r.previous = gen;
+			r.op = n;
+			pending.add(r);	//Not counted
+			count = 0;
+			pending.notify();
+		}
+	}
+
+	//Which file this is, and how many records are in it so far.
+	public long getGeneration(){
+		synchronized(pending){
+			return generation;
+		}
+	}
+
+	public int getCount(){
+		synchronized(pending){
+			return count;
+		}
+	}
+
+	//Write what's waiting now instead of in a bit. For when the app's going away.
+	public void flush(){
+		synchronized(pending){
+			flushNow = true;
+			pending.notify();
+		}
+	}
+
+	//Write what's waiting and stop.
+	public void close(){
+		synchronized(pending){
+			closing = true;
+			pending.notify();
+		}
+	}
+
+	private void add(int type, int op){
+		Record r = new Record();
+		r.type = type;
+		r.op = op;
+		add(r);
+	}
+
+	private void add(Record r){
+		synchronized(pending){
+			count++;
+			pending.add(r);
+			if(pending.size() == 1 || pending.size() >= MAX_BATCH){
+				pending.notify();
+			}
+		}
+	}
+
+	private void work(){
+		ArrayList<Record> todo = new ArrayList<Record>();
+		while(true){
+			boolean stop;
+			synchronized(pending){
+				try{
+					while(pending.isEmpty() && !closing){
+						pending.wait();
+					}
+					//Give the batch a little time to fill up.
+					long until = System.currentTimeMillis() + MAX_DELAY;
+					long left;
+					while(!closing && !flushNow && pending.size() < MAX_BATCH
+							&& (left = until - System.currentTimeMillis()) > 0){
+						pending.wait(left);
+					}
+				}catch(InterruptedException e){
+					closing = true;
+				}
+				todo.addAll(pending);
+				pending.clear();
+				flushNow = false;
+				stop = closing;
+			}
+			try{
+				write(todo);
+			}catch(IOException e){
+				Log.e("Journal", "Journal write failed", e);
+			}
+			todo.clear();
+			if(stop){
+				try{
+					out.close();
+				}catch(IOException e){
+					//Nothing to do about it
+				}
+				return;
+			}
+		}
+	}
+
+	//Encode records and put them on the file, then sync it.
+	private void write(ArrayList<Record> records) throws IOException {
+		if(records.isEmpty()){
+			return;
+		}
+		batch.reset();
+		for(Record r : records){
+			if(r.type == CLEAR){
+				//Everything before is gone, so's the file.
+				batch.reset();
+				out.getChannel().truncate(MAGIC.length);
+				for(int shift=56; shift>=0; shift-=8){
+					batch.write((int)(r.generation >>> shift));
+				}
+				lastBrush = null;
+				continue;
+			}
+			if(r.type == BASE){
+				//Everything before is in the checkpoint, so's the file.
+				batch.reset();
+				rebase(r);
+				lastBrush = null;
+				continue;
+			}
+			if(r.pp != null && r.pp.getPaint() != lastBrush){
+				//Brushes are shared, so a different object is a different brush.
+				lastBrush = r.pp.getPaint();
+				payload.reset();
+				data.writeByte(BRUSH);
+				Effects.write(lastBrush, data);
+				frame();
+			}
+			payload.reset();
+			data.writeByte(r.type);
+			switch(r.type){
+			case STROKE:
+				data.writeByte(r.pp.getLayer());
+				float[] pts = r.pp.getPoints();
+				varint(pts.length/2);
+				int lastX = 0, lastY = 0;
+				for(int i=0; i<pts.length; i+=2){
+					int x = Math.round(pts[i]*SCALE);
+					int y = Math.round(pts[i+1]*SCALE);
+					svarint(x - lastX);
+					svarint(y - lastY);
+					lastX = x;
+					lastY = y;
+				}
+				break;
+			case FILL:
+				data.writeByte(r.pp.getLayer());
+				int[] rects = r.pp.getRects();
+				varint(rects.length/4);
+				int[] last = new int[4];
+				for(int i=0; i<rects.length; i++){
+					svarint(rects[i] - last[i%4]);
+					last[i%4] = rects[i];
+				}
+				break;
+			case LAYER:
+				data.writeByte(r.op);
+				break;
+			}
+			frame();
+		}
+		batch.writeTo(out);
+		out.flush();
+		out.getFD().sync();
+	}
+
+	//Write a new file with just the header and the base record, then swap it in.
+	//If that fails the old one keeps going, it still has everything, and the next
+	//checkpoint won't match it so it's all done again on start like before.
+	private void rebase(Record r) throws IOException {
+		for(int shift=56; shift>=0; shift-=8){
+			batch.write((int)(r.generation >>> shift));
+		}
+		payload.reset();
+		data.writeByte(BASE);
+		data.writeLong(r.previous);
+		data.writeInt(r.op);
+		frame();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try{
+			FileOutputStream fresh = new FileOutputStream(tmp);
+			try{
+				fresh.write(MAGIC);
+				batch.writeTo(fresh);
+				fresh.flush();
+				fresh.getFD().sync();
+			}finally{
+				fresh.close();
+			}
+			out.close();
+			if(!tmp.renameTo(file)){
+				Log.e("Journal", "Can't replace the journal, keeping the old one");
+			}
+			out = new FileOutputStream(file, true);
+		}catch(IOException e){
+			Log.e("Journal", "Can't start the journal over, keeping the old one", e);
+		}finally{
+			batch.reset();
+		}
+	}
+
+	//Put payload in the batch with its length and CRC.
+	private void frame(){
+		int len = payload.size();
+		while((len & ~0x7f) != 0){
+			batch.write((len & 0x7f) | 0x80);
+			len >>>= 7;
+		}
+		batch.write(len);
+		byte[] bytes = payload.toByteArray();
+		batch.write(bytes, 0, bytes.length);
+		crc.reset();
+		crc.update(bytes);
+		int c = (int)crc.getValue();
+		batch.write(c >>> 24);
+		batch.write(c >>> 16);
+		batch.write(c >>> 8);
+		batch.write(c);
+	}
+
+	private void varint(int v) throws IOException {
+		while((v & ~0x7f) != 0){
+			data.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		data.writeByte(v);
+	}
+
+	//Zigzag, so small negative numbers stay small.
+	private void svarint(int v) throws IOException {
+		varint((v << 1) ^ (v >> 31));
+	}
+
+	//Do the records in the file. Returns how much of the file is good, 0 if none.
+	private int replay(Player player, long gen, int saved){
+		byte[] bytes;
+		try{
+			bytes = readAll();
+		}catch(IOException e){
+			bytes = new byte[0];
+		}
+		boolean ok = bytes.length >= HEADER;
+		for(int i=0; ok && i<MAGIC.length; i++){
+			ok = bytes[i] == MAGIC[i];
+		}
+		if(!ok){
+			player.caughtUp(false, false);
+			return 0;
+		}
+		long fileGen = 0;
+		for(int i=MAGIC.length; i<HEADER; i++){
+			fileGen = (fileGen << 8) | (bytes[i] & 0xff);
+		}
+		//Count them first, the checkpoint's no good if it's past the end.
+		walk(bytes, null, -1, false);
+		long[] base = readBase(bytes);
+		if(base != null && saved >= 0 && gen == base[0] && saved == base[1]){
+			//Started over on top of this checkpoint, it has none of this file.
+			gen = fileGen;
+			saved = 0;
+		}
+		if(saved < 0 || fileGen != gen || saved > count){
+			player.caughtUp(false, false);
+			saved = -1;
+		}
+		generation = fileGen;
+		return walk(bytes, player, saved, base != null);
+	}
+
+	//Generation and count of the checkpoint a started over file goes on, from its
+	//first record. Null if it doesn't have one.
+	private static long[] readBase(byte[] bytes){
+		int[] at = {HEADER};
+		int len = readVarint(bytes, at);
+		int start = at[0];
+		if(len != 13 || start + len + 4 > bytes.length || bytes[start] != BASE
+				|| !checks(new CRC32(), bytes, start, len)){
+			return null;
+		}
+		try{
+			DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(bytes, start + 1, len - 1));
+			return new long[]{in.readLong(), in.readInt()};
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+	//True if the CRC after the len bytes at start is right.
+	private static boolean checks(CRC32 check, byte[] bytes, int start, int len){
+		check.reset();
+		check.update(bytes, start, len);
+		int c = ((bytes[start+len] & 0xff) << 24) | ((bytes[start+len+1] & 0xff) << 16)
+				| ((bytes[start+len+2] & 0xff) << 8) | (bytes[start+len+3] & 0xff);
+		return c == (int)check.getValue();
+	}
+
+	//Go through the good records in bytes, doing them if there's a player, and
+	//count them. The player is caughtUp() before record number from, cut if the
+	//file was started over. Returns how much is good.
+	private int walk(byte[] bytes, Player player, int from, boolean cut){
+		count = 0;
+		boolean caught = false;
+		int[] at = {HEADER};
+		int good = at[0];
+		Paint brush = null;
+		CRC32 check = new CRC32();
+		try{
+			while(at[0] < bytes.length){
+				int len = readVarint(bytes, at);
+				int start = at[0];
+				if(len < 1 || start + len + 4 > bytes.length){
+					break;	//Cut off
+				}
+				if(!checks(check, bytes, start, len)){
+					break;	//Half written
+				}
+				int[] p = {start + 1};
+				int end = start + len;
+				if(bytes[start] != BRUSH && bytes[start] != BASE){
+					if(count == from){
+						player.caughtUp(true, cut);
+						caught = true;
+					}
+					count++;
+				}
+				if(player == null){
+					at[0] = end + 4;
+					good = at[0];
+					continue;
+				}
+				switch(bytes[start]){
+				case BRUSH:
+					brush = Effects.read(new DataInputStream(
+							new ByteArrayInputStream(bytes, start + 1, len - 1)));
+					break;
+				case STROKE:{
+					int layer = bytes[p[0]++];
+					float[] pts = new float[readVarint(bytes, p)*2];
+					int x = 0, y = 0;
+					for(int i=0; i<pts.length; i+=2){
+						x += readSvarint(bytes, p);
+						y += readSvarint(bytes, p);
+						pts[i] = x/SCALE;
+						pts[i+1] = y/SCALE;
+					}
+					if(brush != null && p[0] == end){
+						player.mark(new PathPaint(brush, pts, layer));
+					}
+					break;
+				}
+				case FILL:{
+					int layer = bytes[p[0]++];
+					int[] rects = new int[readVarint(bytes, p)*4];
+					int[] last = new int[4];
+					for(int i=0; i<rects.length; i++){
+						rects[i] = last[i%4] + readSvarint(bytes, p);
+						last[i%4] = rects[i];
+					}
+					if(brush != null && p[0] == end){
+						player.mark(new PathPaint(brush, rects, layer));
+					}
+					break;
+				}
+				case UNDO:
+					player.undo();
+					break;
+				case REDO:
+					player.redo();
+					break;
+				case LAYER:
+					player.layer(bytes[p[0]]);
+					break;
+				}
+				at[0] = end + 4;
+				good = at[0];
+			}
+		}catch(IOException e){
+			Log.e("Journal", "Bad brush record", e);
+		}catch(RuntimeException e){
+			//Garbage that happened to pass the CRC. Keep what came before.
+		}
+		if(from >= 0 && !caught){
+			//Checkpoint had all of it. Or the file went bad before it, then the
+			//pixels are still the best there is.
+			player.caughtUp(true, cut);
+		}
+		return good;
+	}
+
+	private byte[] readAll() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try{
+			byte[] bytes = new byte[(int)file.length()];
+			int n = 0;
+			while(n < bytes.length){
+				int r = in.read(bytes, n, bytes.length - n);
+				if(r < 0){
+					break;
+				}
+				n += r;
+			}
+			return n == bytes.length ? bytes : Arrays.copyOf(bytes, n);
+		}finally{
+			in.close();
+		}
+	}
+
+	private static int readVarint(byte[] b, int[] at){
+		int v = 0;
+		for(int shift=0; shift<35; shift+=7){
+			if(at[0] >= b.length){
+				return -1;
+			}
+			int x = b[at[0]++];
+			v |= (x & 0x7f) << shift;
+			if((x & 0x80) == 0){
+				return v;
+			}
+		}
+		return -1;
+	}
+
+	private static int readSvarint(byte[] b, int[] at){
+		int v = readVarint(b, at);
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
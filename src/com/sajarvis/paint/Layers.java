@@ -0,0 +1,263 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The drawing layers. Each one has its own bitmap, and can be hidden, faded, or
+ * blended into the ones under it. Marks only ever go on the active layer, so
+ * everything under it is kept merged in one bitmap and everything over it in
+ * another. A frame is just those two and the active layer, however many there are.
+ * The merged ones are only made again when a layer besides the active one changes.
+ *
+ * Only normal layers get merged. A blend mode works on whatever's already under the
+ * layer, background included, so a layer with one is always drawn on its own right
+ * onto the frame. Merging it onto a clear bitmap would change how it looks depending
+ * on which layer is active, and multiply would just vanish. The merged bitmaps only
+ * take the normal layers up to the first one that isn't.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.Xfermode;
+
+public class Layers {
+	//Each one is a screen sized bitmap, and so is its base in the history.
+	public static final int MAX = 4;
+
+	//Ways a layer can go on the ones under it. Null is just on top.
+	public static final Xfermode[] MODES = {
+		null,
+		new PorterDuffXfermode(PorterDuff.Mode.MULTIPLY),
+		new PorterDuffXfermode(PorterDuff.Mode.SCREEN),
+		new PorterDuffXfermode(PorterDuff.Mode.DARKEN),
+		new PorterDuffXfermode(PorterDuff.Mode.LIGHTEN),
+	};
+	public static final String[] MODE_NAMES = {
+		"Normal", "Multiply", "Screen", "Darken", "Lighten"
+	};
+
+	private static class Layer {
+		Bitmap bitmap;
+		Canvas canvas;
+		boolean visible = true;
+		int opacity = 255;
+		int mode;		//Into MODES
+	}
+
+	private BitmapPool pool;
+	private Layer[] layers = new Layer[MAX];
+	private int count;
+	private int active;
+
+	//Normal layers just under and over the active layer, merged. Only made if there's
+	//something there. below has the layers before belowEnd, above the ones after the
+	//active one and before aboveEnd. The rest are drawn one at a time.
+	private Bitmap below, above;
+	private Canvas belowCanvas, aboveCanvas;
+	private boolean belowStale, aboveStale;
+	private int belowEnd, aboveEnd;
+
+	//For putting one layer on another.
+	private Paint paint = new Paint(Paint.DITHER_FLAG);
+
+	//Starts with one layer.
+	public Layers(BitmapPool p){
+		pool = p;
+		add();
+	}
+
+	//Put a new empty layer on top and make it active. Always the top so the layers
+	//history marks point at never move. The index of the new layer, or -1 if there
+	//are already MAX.
+	public int add(){
+		if(count == MAX){
+			return -1;
+		}
+		Layer l = new Layer();
+		l.bitmap = pool.acquire();
+		l.canvas = new Canvas(l.bitmap);
+		layers[count] = l;
+		setActive(count++);
+		return count-1;
+	}
+
+	public int getCount(){
+		return count;
+	}
+
+	public int getActive(){
+		return active;
+	}
+
+	//Marks go on layer i from now on.
+	public void setActive(int i){
+		active = i;
+		belowStale = aboveStale = true;
+	}
+
+	public Bitmap getBitmap(int i){
+		return layers[i].bitmap;
+	}
+
+	public Canvas getCanvas(int i){
+		return layers[i].canvas;
+	}
+
+	//Index of the layer that owns b, or -1.
+	public int indexOf(Bitmap b){
+		for(int i=0; i<count; i++){
+			if(layers[i].bitmap == b){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean isVisible(int i){
+		return layers[i].visible;
+	}
+	public void setVisible(int i, boolean v){
+		layers[i].visible = v;
+		changed(i);
+	}
+
+	public int getOpacity(int i){
+		return layers[i].opacity;
+	}
+	public void setOpacity(int i, int alpha){
+		layers[i].opacity = alpha;
+		changed(i);
+	}
+
+	//Index into MODES.
+	public int getMode(int i){
+		return layers[i].mode;
+	}
+	public void setMode(int i, int mode){
+		layers[i].mode = mode;
+		changed(i);
+	}
+
+	//Layer i's pixels or settings changed. The active one is always drawn fresh,
+	//anything else means a merged bitmap has to be made again.
+	public void changed(int i){
+		if(i < active){
+			belowStale = true;
+		}else if(i > active){
+			aboveStale = true;
+		}
+	}
+
+	//Wipe every layer. They all stay, just empty.
+	public void eraseAll(){
+		for(int i=0; i<count; i++){
+			layers[i].bitmap.eraseColor(0);
+		}
+		belowStale = aboveStale = true;
+	}
+
+	//Draw the layers under the active one and the active one, inside clip. The
+	//marks still going go next, then drawOver().
+	public void drawUnder(Canvas canvas, Rect clip){
+		if(belowStale){
+			belowEnd = plainUpTo(0, active);
+			if(belowEnd > 0){
+				if(below == null){
+					below = pool.acquire();
+					belowCanvas = new Canvas(below);
+				}
+				merge(belowCanvas, 0, belowEnd);
+			}
+			belowStale = false;
+		}
+		if(belowEnd > 0){
+			drawMerged(canvas, clip, below);
+		}
+		for(int i=belowEnd; i<active; i++){
+			drawLayer(canvas, clip, layers[i]);
+		}
+		drawLayer(canvas, clip, layers[active]);
+	}
+
+	//Draw the layers over the active one, inside clip.
+	public void drawOver(Canvas canvas, Rect clip){
+		if(aboveStale){
+			aboveEnd = plainUpTo(active+1, count);
+			if(aboveEnd > active+1){
+				if(above == null){
+					above = pool.acquire();
+					aboveCanvas = new Canvas(above);
+				}
+				merge(aboveCanvas, active+1, aboveEnd);
+			}
+			aboveStale = false;
+		}
+		if(aboveEnd > active+1){
+			drawMerged(canvas, clip, above);
+		}
+		for(int i=Math.max(aboveEnd, active+1); i<count; i++){
+			drawLayer(canvas, clip, layers[i]);
+		}
+	}
+
+	//First layer from from on that has a blend mode, or to if none before it do.
+	//Hidden ones don't count, they aren't drawn.
+	private int plainUpTo(int from, int to){
+		for(int i=from; i<to; i++){
+			if(layers[i].visible && layers[i].mode != 0){
+				return i;
+			}
+		}
+		return to;
+	}
+
+	private void drawMerged(Canvas canvas, Rect clip, Bitmap merged){
+		paint.setAlpha(255);
+		paint.setXfermode(null);
+		canvas.drawBitmap(merged, clip, clip, paint);
+	}
+
+	//Make a merged bitmap from layers from up to to. They're all normal.
+	private void merge(Canvas target, int from, int to){
+		target.drawColor(0, PorterDuff.Mode.CLEAR);
+		for(int i=from; i<to; i++){
+			drawLayer(target, null, layers[i]);
+		}
+	}
+
+	private void drawLayer(Canvas canvas, Rect clip, Layer l){
+		if(!l.visible){
+			return;
+		}
+		paint.setAlpha(l.opacity);
+		paint.setXfermode(MODES[l.mode]);
+		if(clip == null){
+			canvas.drawBitmap(l.bitmap, 0, 0, paint);
+		}else{
+			canvas.drawBitmap(l.bitmap, clip, clip, paint);
+		}
+	}
+}
@@ -53,6 +53,7 @@
 package com.sajarvis.paint;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -62,22 +63,27 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BlurMaskFilter;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.DashPathEffect;
-import android.graphics.EmbossMaskFilter;
 import android.graphics.MaskFilter;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.PathMeasure;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.drawable.GradientDrawable;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.view.Display;
@@ -97,12 +103,15 @@ import android.widget.Toast;
 
 import com.sajarvis.fingerpaint.R;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import yuku.ambilwarna.AmbilWarnaDialog;
 import yuku.ambilwarna.OnAmbilWarnaListener;
@@ -111,7 +120,6 @@ import yuku.ambilwarna.OnAmbilWarnaListener;
 //TODO Make brush selector more graphic.
 //TODO Look into tablet compatibility.
 //TODO support orientation
-//TODO asynctask pic saving
 
 public class Main extends GraphicsActivity {
 
@@ -134,6 +142,7 @@ public class Main extends GraphicsActivity {
 
 	//View
 	DrawingView myView;	//The custom view
+	RenderSurface surface;	//Shows myView from a render thread instead. Null if not used.
 	int width, height;	//passed to custom view to make it the right size.
 
 	//Prefs class is used for paint mostly.
@@ -151,22 +160,48 @@ public class Main extends GraphicsActivity {
 	private TextView brushSize;
 
 	//Store the file path each time it's stored. Also note whether the canvas
-	//has changed since last save
+	//has changed since last save. changed is set on the drawing thread too.
 	private File path = null;
-	private boolean changed = false;
+	private volatile boolean changed = false;
+
+	//Spare screen sized bitmaps
+	private BitmapPool bitmapPool;
+	//Saves, shares and imports happen on here
+	private IoScheduler io;
+	//Every change to the drawing, so it's back after a crash. Null if the history
+	//isn't paths, or the file couldn't be opened.
+	private Journal journal;
+	//Doing the journal again on start, on its own thread. No toasts for that, and
+	//nothing else touches the drawing till it's done.
+	private volatile boolean restoring;
+	private boolean destroyed;
+	//The layers' pixels, saved a few tiles at a time when the drawing goes quiet.
+	//Null on the big canvas, it saves its own tiles, or if the file couldn't be opened.
+	private Checkpoint checkpoint;
+	private final Handler autosave = new Handler();
+	//How long nothing has to change before the checkpoint is saved, ms.
+	private static final long AUTOSAVE_IDLE = 2000;
 
 	//The history stack
 	private Stack history;
 	private int historyCount;
+	//Pixel history instead, if that's what the prefs say. Null otherwise.
+	private TileStack tileHistory;
+	//Drawing bigger than the screen, if that's what the prefs say. Null otherwise.
+	//It keeps its own undo, so history and tileHistory go unused.
+	private TiledCanvas bigCanvas;
 
 	//For background pic
 	private ImageView backImage;
 
-	//To ignore taps that don't move
-	private boolean somethingWasActuallyDrawn;
-
+	//Set on the UI thread, read on the drawing thread, so volatile.
 	//Mark whether we're in eye dropper mode
-	private boolean dropperOn;
+	private volatile boolean dropperOn;
+	//Square the dropper averages over, from prefs
+	private volatile int dropperSize;
+	//Bucket mode, and how far off a color can be and still get filled
+	private volatile boolean fillOn;
+	private volatile int fillTolerance;
 
 
 	//onCreate set things up. Most of it happens in other methods called from here.
@@ -188,22 +223,85 @@ public class Main extends GraphicsActivity {
 		initiateAccel();
 		setClickListeners();
 
+		io = new IoScheduler();
+
 		//Dropper function is not on
 		dropperOn = false;
+		dropperSize = prefs.getDropperSize();
 
 		//Get the height and width of display to make an appropriately sized custom view
 		Display display = getWindowManager().getDefaultDisplay();
 		width = display.getWidth();
 		height = display.getHeight();
 
+		//Screen sized bitmaps all come from here.
+		bitmapPool = new BitmapPool(width, height, canvasConfig(), 2);
+
 		//Initialize the history stack.
-		history = new Stack(this, width, height);
+		history = new Stack(this, bitmapPool, io);
 		historyCount = -1;
+		if(prefs.getHistoryMode().equals("tiles")){
+			//An eighth of the heap for undo pixels.
+			tileHistory = new TileStack(width, height, bitmapPool.getConfig(),
+					Runtime.getRuntime().maxMemory()/8);
+		}
+
+		if(prefs.useBigCanvas()){
+			//Three screens each way. About twice what's on screen stays in memory.
+			//Its tiles are kept in a file, so it's all there again next start.
+			int onScreen = (width/TiledCanvas.TILE + 2)*(height/TiledCanvas.TILE + 2);
+			bigCanvas = new TiledCanvas(new File(getFilesDir(), "canvas.tiles"),
+					width*3, height*3, bitmapPool.getConfig(), onScreen*2, 10);
+		}
 
 		//Make a new custom view
 		myView = new DrawingView(this, width, height);
-		myView.setDrawingCacheEnabled(true);	//Allow to save drawing
-		drawing.addView(myView);
+		if(prefs.useRenderThread()){
+			//Drawing happens on its own thread. myView still keeps the drawing, but
+			//the surface is what's shown.
+			surface = new RenderSurface(this, myView);
+			drawing.addView(surface);
+		}else{
+			//No drawing cache, saving draws its own copy. See snapshot().
+			drawing.addView(myView);
+		}
+
+		if(bigCanvas == null){
+			Checkpoint c = new Checkpoint(new File(getFilesDir(), "canvas.checkpoint"),
+					width, height, bitmapPool.getConfig());
+			if(c.open()){
+				checkpoint = c;
+			}
+		}
+		if(tileHistory == null && bigCanvas == null){
+			//Put back whatever was drawn last time, then keep adding to it. What the
+			//checkpoint has only goes in the history, the rest gets drawn.
+			//Can take a while, so it's off the UI thread. The restore thread is the
+			//drawing thread till restored().
+			final Journal j = new Journal(new File(getFilesDir(), "strokes.journal"));
+			restoring = true;
+			myView.mSkipDraw = checkpoint != null;
+			history.setOnPixels(checkpoint != null);
+			final long gen = checkpoint != null ? checkpoint.getGeneration() : 0;
+			final int saved = checkpoint != null ? checkpoint.getCount() : -1;
+			new Thread("restore"){
+				@Override
+				public void run(){
+					final boolean ok = j.open(myView, gen, saved);
+					final boolean drawn = historyCount > 0;
+					myView.undoRedoChanged();
+					runOnUiThread(new Runnable(){
+						@Override
+						public void run(){
+							restored(ok ? j : null, drawn);
+						}
+					});
+				}
+			}.start();
+		}else if(checkpoint != null){
+			//No journal, the pixels are all there is.
+			myView.caughtUp(checkpoint.getCount() >= 0, false);
+		}
 
 		//Start off showing it hiding. Might help them know it's there.
 		panel.startAnimation(openHide);
@@ -212,7 +310,37 @@ public class Main extends GraphicsActivity {
 		setBackground(false);	
 
 		//Set the buttons disabled cause there's nothing in the stack
-		updateUndoRedo();
+		if(!restoring){
+			myView.undoRedoChanged();
+		}
+	}
+
+	//The journal's all done again, show it and let everything else at the drawing.
+	//UI thread.
+	private void restored(Journal j, boolean drawn){
+		if(destroyed){
+			if(j != null){
+				j.close();
+			}
+			return;
+		}
+		journal = j;
+		restoring = false;
+		changed = drawn;
+		myView.refresh();
+		if(checkpoint != null){
+			autosaveLater();
+		}
+	}
+
+	//True, and says so, while the drawing is still being put back. UI thread.
+	private boolean stillRestoring(){
+		if(!restoring){
+			return false;
+		}
+		Toast.makeText(getApplicationContext(), "Still putting the drawing back.",
+				Toast.LENGTH_SHORT).show();
+		return true;
 	}
 
     @Override
@@ -246,34 +374,62 @@ public class Main extends GraphicsActivity {
         super.onBackPressed();
     }
 
+    //Writing goes on the I/O thread, we go back once it's written.
     private void sendImage() {
         Intent originalIntent = this.getIntent();
         Uri fileUri = originalIntent.getParcelableExtra(MediaStore.EXTRA_OUTPUT);
 
-        try {
-            if(grayBack.getVisibility() == View.VISIBLE){
-                myView.setBackgroundResource(R.color.gray);
-            }else{
-                myView.setBackgroundDrawable(backImage.getDrawable());
+        final File file = new File(fileUri.getPath());
+        withSnapshot(new SnapshotTaker(){
+            @Override
+            public void take(final Picture pic) {
+                io.submit(new IoScheduler.Job(IoScheduler.SAVE, "send"){
+                    @Override
+                    protected void run() throws IOException {
+                        pic.write(file, false);
+                    }
+                    @Override
+                    protected void done() {
+                        setResult(Activity.RESULT_OK);
+                        Main.super.onBackPressed();
+                    }
+                    @Override
+                    protected void failed(Exception e) {
+                        setResult(Activity.RESULT_CANCELED);
+                        Main.super.onBackPressed();
+                    }
+                    @Override
+                    protected void finish() {
+                        pic.release();
+                    }
+                });
             }
-
-            Bitmap bMap = Bitmap.createBitmap(myView.getDrawingCache());
-
-            OutputStream fOut = null;
-            File file = new File(fileUri.getPath());
-            file.createNewFile();
-            fOut = new FileOutputStream(file);
-            bMap.compress(Bitmap.CompressFormat.JPEG, 90, fOut);
-            fOut.flush();
-            fOut.close();
-        }catch (IOException ex) {
-            setResult(Activity.RESULT_CANCELED);
-        }
-
-        setResult(Activity.RESULT_OK);
-        super.onBackPressed();
+        });
     }
 
+	//Let the replay threads go. Saves still waiting get finished first.
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		destroyed = true;
+		myView.release();
+		if(checkpoint != null){
+			//After any autosave still waiting.
+			autosave.removeCallbacks(autosaver);
+			final Checkpoint c = checkpoint;
+			io.submit(new IoScheduler.Job(IoScheduler.AUTOSAVE, "close checkpoint"){
+				@Override
+				protected void run(){
+					c.close();
+				}
+			});
+		}
+		io.shutdown();
+		if(journal != null){
+			journal.close();
+		}
+	}
+
 	//Make sure the accelerometer listener stops when the app does.
 	@Override
 	protected void onResume() {
@@ -289,9 +445,18 @@ public class Main extends GraphicsActivity {
 		super.onStop();
 		//Stop the motion listener
 		mSensorManager.unregisterListener(mSensorListener);
+		//Get the last marks on disk, we might not come back.
+		if(journal != null){
+			journal.flush();
+		}
+		if(checkpoint != null || bigCanvas != null){
+			autosave.removeCallbacks(autosaver);
+			autosaver.run();
+		}
 		//Save preferences.
 		mPaint.setXfermode(null);	//I don't want it saving transparent color paint.
 		saveUsedOnExit();
+		brushChanged();
 	}
 
 	/*
@@ -365,18 +530,14 @@ public class Main extends GraphicsActivity {
 	//Set the paint variables and preferences from last close
 	public void setPaint(){
 		//mPaint is the paint that will be used to draw the paths.
-		mPaint = new Paint();
-		mPaint.setAntiAlias(true);
-		mPaint.setDither(true);
-		mPaint.setStrokeJoin(Paint.Join.ROUND);
-		mPaint.setStrokeCap(Paint.Cap.ROUND);
+		mPaint = Effects.newPaint();
 		mPaint.setStrokeWidth(prefs.getLastSize());
 
-		//To emboss, blur, src_atop, and dash.
-		mEmboss = new EmbossMaskFilter(new float[] { 1, 1, 1 },0.4f, 6, 3.5f);
-		mBlur = new BlurMaskFilter(8, BlurMaskFilter.Blur.NORMAL);
-		mBlendy = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
-		mDash = new DashPathEffect(new float[]{10,40}, 1);
+		//To emboss, blur, src_atop, and dash. Shared so history can write them down.
+		mEmboss = Effects.EMBOSS;
+		mBlur = Effects.BLUR;
+		mBlendy = Effects.BLENDY;
+		mDash = Effects.DASH;
 
 		//And set the brush color, style, filter, and effect from last time (from mPrefs)
 		mPaint.setColor(prefs.getLastColor());
@@ -435,6 +596,7 @@ public class Main extends GraphicsActivity {
 			@Override
 			public void onProgressChanged(SeekBar arg0, int progress, boolean fromUser) {
 				mPaint.setStrokeWidth(progress);
+				brushChanged();
 				updateBrushSizeText(progress);
 			}
 		});
@@ -478,16 +640,14 @@ public class Main extends GraphicsActivity {
 		undo.setOnClickListener(new View.OnClickListener(){
 			@Override
 			public void onClick(View arg0) {
-				myView.undo();
-				updateUndoRedo();
+				doUndo();
 			}
 		});
 		//Redo that undo
 		redo.setOnClickListener(new View.OnClickListener(){
 			@Override
 			public void onClick(View arg0) {
-				myView.redo();
-				updateUndoRedo();
+				doRedo();
 			}
 		});
 		//Eraser
@@ -501,9 +661,10 @@ public class Main extends GraphicsActivity {
 					mPaint.setXfermode(null);
 					makeToast(getString(R.string.eraser_off));
 				}else{
-					mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+					mPaint.setXfermode(Effects.ERASER);
 					makeToast(getString(R.string.eraser_on));
 				}
+				brushChanged();
 			}
 		});
 		//Clear canvas
@@ -540,9 +701,24 @@ public class Main extends GraphicsActivity {
 				}else{
 					makeToast("Dropper On");
 					dropperOn=true;
+					fillOn=false;
 				}
 			}
 		});
+		//Long press picks how big a spot the dropper averages.
+		dropper.setOnLongClickListener(new View.OnLongClickListener(){
+			@Override
+			public boolean onLongClick(View arg0) {
+				dropperSize = dropperSize >= 5 ? 1 : dropperSize + 2;
+				prefs.setDropperSize(dropperSize);
+				if(dropperSize == 1){
+					makeToast("Dropper picks one pixel");
+				}else{
+					makeToast("Dropper averages "+dropperSize+"x"+dropperSize+" pixels");
+				}
+				return true;
+			}
+		});
 	}
 
 	//Clear that background pic. If we imported another pic, set to black. If
@@ -556,8 +732,10 @@ public class Main extends GraphicsActivity {
 			backImage.setImageDrawable(null);	//Clear image
 			grayBack.setVisibility(View.VISIBLE);
 			//backImage.setBackgroundResource(R.color.gray);	//Set background gray
+			myView.mBackground = null;
 		}
-		myView.invalidate();
+		myView.mSampler.invalidate();
+		myView.refresh();
 	}
 
 	/*
@@ -600,6 +778,71 @@ public class Main extends GraphicsActivity {
 		case R.id.about:
 			startActivity(new Intent(this, About.class));
 			return true;
+		case R.id.history_mode:
+			//Pixel history is faster to undo for blur and emboss but uses more memory.
+			//Takes over next time the app starts.
+			if(prefs.getHistoryMode().equals("tiles")){
+				prefs.setHistoryMode("paths");
+				makeToast("Undo will replay marks next time.");
+			}else{
+				prefs.setHistoryMode("tiles");
+				makeToast("Undo will keep pixels next time.");
+			}
+			if(tileHistory != null){
+				makeToast("Undo pixels use "+tileHistory.getMemoryUsage()/1024+"KB");
+			}
+			return true;
+		case R.id.layers:
+			showLayerMenu();
+			return true;
+		case R.id.save_format:
+			//Lossless PNG, or the smaller JPEG.
+			if(prefs.getSaveFormat().equals("png")){
+				prefs.setSaveFormat("jpeg");
+				makeToast("Saving as JPEG");
+			}else{
+				prefs.setSaveFormat("png");
+				makeToast("Saving as PNG, no quality lost");
+			}
+			return true;
+		case R.id.bucket_fill:
+			showFillMenu();
+			return true;
+		case R.id.canvas_size:
+			//Zoom and pan over a drawing three screens each way. Next start.
+			prefs.setBigCanvas(!prefs.useBigCanvas());
+			if(prefs.useBigCanvas()){
+				makeToast("Big canvas next time. Two fingers zoom and pan.");
+			}else{
+				makeToast("Screen sized canvas next time.");
+			}
+			return true;
+		case R.id.canvas_mode:
+			//Half the memory for the drawing, but fewer shades. Goes auto, low, full
+			//and back to auto. Next start.
+			String mode = prefs.getCanvasMode();
+			if(!canUseLow()){
+				makeToast("This phone always uses a full color canvas.");
+			}else if(mode.equals("auto")){
+				prefs.setCanvasMode("low");
+				makeToast("Low memory canvas next time.");
+			}else if(mode.equals("low")){
+				prefs.setCanvasMode("full");
+				makeToast("Full color canvas next time.");
+			}else{
+				prefs.setCanvasMode("auto");
+				makeToast("Canvas picked from the phone's memory next time.");
+			}
+			return true;
+		case R.id.render_mode:
+			//Its own thread keeps drawing smooth while the UI is busy. Next start.
+			prefs.setRenderThread(!prefs.useRenderThread());
+			if(prefs.useRenderThread()){
+				makeToast("Drawing on its own thread next time.");
+			}else{
+				makeToast("Drawing on the UI thread next time.");
+			}
+			return true;
 		}
 		return super.onOptionsItemSelected(item);
 	}
@@ -613,10 +856,127 @@ public class Main extends GraphicsActivity {
 		colorChooser.postInvalidate();
 	}
 
+	//Undo, redo and clear go to the render thread if there is one.
+	public void doUndo(){
+		if(stillRestoring()){
+			return;
+		}
+		if(surface != null){
+			surface.send(TouchQueue.UNDO, 0, 0, 0, 0);
+		}else{
+			myView.undo();
+			myView.undoRedoChanged();
+		}
+	}
+	public void doRedo(){
+		if(stillRestoring()){
+			return;
+		}
+		if(surface != null){
+			surface.send(TouchQueue.REDO, 0, 0, 0, 0);
+		}else{
+			myView.redo();
+			myView.undoRedoChanged();
+		}
+	}
+	public void doClear(){
+		if(stillRestoring()){
+			return;
+		}
+		if(surface != null){
+			surface.send(TouchQueue.CLEAR, 0, 0, 0, 0);
+		}else{
+			myView.clearDrawing();
+			myView.undoRedoChanged();
+		}
+	}
+
+	//Layer menu, goes to the render thread like undo.
+	public void doLayer(int op){
+		if(stillRestoring()){
+			return;
+		}
+		if(surface != null){
+			surface.send(TouchQueue.LAYER, op, 0, 0, 0);
+		}else{
+			myView.layerCommand(op);
+		}
+	}
+
+	//Pick what to do with layers.
+	private void showLayerMenu(){
+		CharSequence[] items = {"New layer", "Next layer", "Show or hide this layer",
+				"Change this layer's opacity", "Change this layer's blend"};
+		new AlertDialog.Builder(this)
+				.setTitle("Layers")
+				.setItems(items, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						doLayer(which);	//Same order as the LAYER_ ops
+					}
+				})
+				.show();
+	}
+
+	//Turn the bucket on with a tolerance, or off.
+	private void showFillMenu(){
+		CharSequence[] items = {"Fill just that color", "Fill close colors",
+				"Fill similar colors", "Stop filling"};
+		final int[] tolerances = {0, 24, 64};
+		new AlertDialog.Builder(this)
+				.setTitle("Bucket Fill")
+				.setItems(items, new DialogInterface.OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						if(which < tolerances.length){
+							dropperOff();
+							fillOn = true;
+							fillTolerance = tolerances[which];
+							makeToast("Touch an area to fill it.");
+						}else if(fillOn){
+							fillOn = false;
+							makeToast("Fill Off");
+						}
+					}
+				})
+				.show();
+	}
+
+	//The drawing's been quiet a while, save the tiles that changed. Copying them
+	//off the layers is on the drawing thread, writing is on the io one. The big
+	//canvas writes its tiles on the drawing thread.
+	private final Runnable autosaver = new Runnable(){
+		@Override
+		public void run() {
+			if(surface != null){
+				surface.send(TouchQueue.CHECKPOINT, 0, 0, 0, 0);
+			}else{
+				myView.checkpoint();
+			}
+		}
+	};
+
+	//Something changed, save the checkpoint once it's quiet. Any thread.
+	private void autosaveLater(){
+		autosave.removeCallbacks(autosaver);
+		autosave.postDelayed(autosaver, AUTOSAVE_IDLE);
+	}
+
+	//For the render thread to fix the buttons when it's done with something.
+	private final Runnable undoRedoUpdater = new Runnable(){
+		@Override
+		public void run() {
+			updateUndoRedo();
+		}
+	};
+
 	//Update the undo/redo buttons after a touch, and after undo/redo, and clear.
+	//Set by the drawing thread, it's the only one that can look at the history.
+	private volatile boolean canUndo, canRedo;
+
 	public void updateUndoRedo(){
 		//if no more undos, disable undo button
-		if(historyCount<1){
+		if(!canUndo){
 			undo.setColorFilter(R.color.disabled);
 			undo.setClickable(false);
 		}else{
@@ -624,7 +984,7 @@ public class Main extends GraphicsActivity {
 			undo.setClickable(true);
 		}
 		//if no more redos, disable that one
-		if(historyCount>=history.getSize()-1){
+		if(!canRedo){
 			redo.setColorFilter(R.color.disabled);
 			redo.setClickable(false);
 		}else{
@@ -645,6 +1005,7 @@ public class Main extends GraphicsActivity {
 	public void eraserOff(){
 		if(mPaint.getXfermode() != null){
 			mPaint.setXfermode(null);
+			brushChanged();
 			makeToast(getString(R.string.eraser_off));
 		}
 	}
@@ -664,6 +1025,7 @@ public class Main extends GraphicsActivity {
 				if(blendOn){
 					setBrush("keepBlendOn");
 				}
+				brushChanged();
 			}
 			@Override
 			public void onCancel(AmbilWarnaDialog dialog) {
@@ -677,36 +1039,50 @@ public class Main extends GraphicsActivity {
 	 * Saving and sharing the painting.
 	 */
 	//Save the photo only. Sharing is separate.
+	//The picture is grabbed here, it's written on the I/O thread.
 	private void savePhoto(String fileName) throws IOException {
-		//Need to set contents of imageview to background of myView
-		if(grayBack.getVisibility() == View.VISIBLE){
-			myView.setBackgroundResource(R.color.gray);
-		}else{
-			myView.setBackgroundDrawable(backImage.getDrawable());
-		}
-		fileName = fileName.concat(".jpeg");
+		final boolean png = saveFormat().equals("png");
+		fileName = fileName.concat(png ? ".png" : ".jpeg");
 		//Var to check to see if the card is available
 		String state = Environment.getExternalStorageState();
 		//Check the state
 		if(Environment.MEDIA_MOUNTED.equals(state)){	//It's available. Do it!
-			Bitmap bMap = Bitmap.createBitmap(myView.getDrawingCache());
 			//Gets the directory of local storage.
 			String dir = Environment.getExternalStorageDirectory().toString();
 			//Add my folder to the directory and create it.
-			File completeDir = new File(dir+File.separator+dirName);
-			completeDir.mkdirs();
-			OutputStream fOut = null;
-			File file = new File(completeDir,fileName);
-			file.createNewFile();
-			fOut = new FileOutputStream(file);
-			bMap.compress(Bitmap.CompressFormat.JPEG, 90, fOut);
-			fOut.flush();
-			fOut.close();
-			//Notify the user the file's been saved
-			makeNoti(getString(R.string.noti_title),getString(R.string.noti_title),"Location: "+file.toString(),file);
-			//So we know what to share and that we can.
-			path = file;
+			final File completeDir = new File(dir+File.separator+dirName);
+			final File file = new File(completeDir,fileName);
+			//Nothing to share until it's written. Drawing while it saves sets changed again.
+			path = null;
 			changed = false;
+			withSnapshot(new SnapshotTaker(){
+				@Override
+				public void take(final Picture pic) {
+					io.submit(new IoScheduler.Job(IoScheduler.SAVE, "save"){
+						@Override
+						protected void run() throws IOException {
+							completeDir.mkdirs();
+							pic.write(file, png);
+						}
+						@Override
+						protected void done() {
+							//Notify the user the file's been saved
+							makeNoti(getString(R.string.noti_title),getString(R.string.noti_title),"Location: "+file.toString(),file);
+							//So we know what to share and that we can.
+							path = file;
+						}
+						@Override
+						protected void failed(Exception e) {
+							changed = true;
+							makeToast("Whoops, the picture couldn't be saved.");
+						}
+						@Override
+						protected void finish() {
+							pic.release();
+						}
+					});
+				}
+			});
 		}
 		else if(Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)){	//Read only
 			makeToast("Whoops, the media card is not available for writing.");
@@ -714,27 +1090,181 @@ public class Main extends GraphicsActivity {
 		else{	//Don't know what's wrong, but it's wrong.
 			makeToast("Problem! The media card is not available. Is it in the phone and mounted?");
 		}
-		//Clear the background of the image, otherwise it's dumb
-		myView.setBackgroundDrawable(null);
+	}
+
+	//Write bmp to file as a JPEG. On the I/O thread.
+	private static void writeJpeg(Bitmap bmp, File file) throws IOException {
+		file.createNewFile();
+		OutputStream fOut = new FileOutputStream(file);
+		try{
+			bmp.compress(Bitmap.CompressFormat.JPEG, 90, fOut);
+			fOut.flush();
+		}finally{
+			fOut.close();
+		}
+	}
+
+	//Write bmp to file as a PNG, on every core. On the I/O thread.
+	private static void writePng(final Bitmap bmp, File file) throws IOException {
+		writePng(new PngEncoder.Rows(){
+			@Override
+			public void get(int top, int count, int[] out) {
+				bmp.getPixels(out, 0, bmp.getWidth(), 0, top, bmp.getWidth(), count);
+			}
+		}, bmp.getWidth(), bmp.getHeight(), 1, file);
+	}
+
+	//Same from rows, each band starting on a multiple of align rows.
+	private static void writePng(PngEncoder.Rows rows, int w, int h, int align, File file)
+			throws IOException {
+		file.createNewFile();
+		OutputStream fOut = new BufferedOutputStream(new FileOutputStream(file), 64*1024);
+		try{
+			PngEncoder.write(rows, w, h, align, fOut);
+		}finally{
+			fOut.close();
+		}
+	}
+
+	//16 bit canvases on phones that don't give us much memory. About five screen
+	//sized bitmaps get used at once, and they should fit in half the heap. 4444 keeps
+	//alpha in the pixels, so eraser and blendy work the same. The catch is only 16
+	//levels per channel. Blur and emboss come out in bands, soft edges get steppy and
+	//the blendy brush's 0x80 alpha rounds to 0x88. 565 looks better but has no alpha,
+	//so it'd need a separate alpha bitmap for every layer, which is most of the
+	//memory we were trying to save. Anyone who minds can pick full in the menu.
+	private Bitmap.Config canvasConfig(){
+		if(!canUseLow()){
+			return Bitmap.Config.ARGB_8888;
+		}
+		String mode = prefs.getCanvasMode();
+		if(mode.equals("auto")){
+			ActivityManager am = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+			long heap = am.getMemoryClass()*1024L*1024L;
+			mode = 5L*width*height*4 > heap/2 ? "low" : "full";
+		}
+		return mode.equals("low") ? Bitmap.Config.ARGB_4444 : Bitmap.Config.ARGB_8888;
+	}
+
+	//From KitKat (19) on 4444 gets made as 8888 anyway, so low saves nothing there.
+	private static boolean canUseLow(){
+		return Build.VERSION.SDK_INT < 19;
+	}
+
+	//The big canvas is always a PNG, a JPEG needs the whole picture in one bitmap.
+	private String saveFormat(){
+		return bigCanvas != null ? "png" : prefs.getSaveFormat();
+	}
+
+	//The picture to save, taken on the drawing thread. Either a snapshot bitmap, or
+	//on the big canvas its tiles. That'd be nine screens in one bitmap, too much to
+	//have at once, so they're read from the tile file a band of rows at a time
+	//straight into the PNG, with the background put under them.
+	private class Picture {
+		private Bitmap bitmap;
+		private TiledCanvas.Export tiles;
+		//The imported picture at the top left, on back. Just back if there isn't one.
+		private Bitmap picture;
+		private int back;
+
+		//Write it to file, a JPEG if png is false and it's a bitmap. On the I/O thread.
+		void write(File file, boolean png) throws IOException {
+			if(bitmap != null){
+				if(png){
+					writePng(bitmap, file);
+				}else{
+					writeJpeg(bitmap, file);
+				}
+				return;
+			}
+			if(tiles == null){
+				throw new IOException("No tile file to save from");
+			}
+			final int w = tiles.getWidth();
+			writePng(new PngEncoder.Rows(){
+				@Override
+				public void get(int top, int count, int[] out) throws IOException {
+					Arrays.fill(out, 0, w*count, back);
+					if(picture != null && top < picture.getHeight()){
+						int n = Math.min(count, picture.getHeight() - top);
+						int pw = Math.min(w, picture.getWidth());
+						picture.getPixels(out, 0, w, 0, top, pw, n);
+					}
+					tiles.blend(top, count, out);
+				}
+			}, w, tiles.getHeight(), TiledCanvas.TILE/4, file);
+		}
+
+		//Done with it. On the UI thread.
+		void release(){
+			if(bitmap != null){
+				bitmapPool.release(bitmap);
+			}
+		}
+	}
+
+	//Something to do with a snapshot. On the UI thread, and it calls release() when
+	//it's done with it.
+	private interface SnapshotTaker {
+		void take(Picture p);
+	}
+	//Waiting for the render thread to make their snapshot, oldest first.
+	private final ConcurrentLinkedQueue<SnapshotTaker> snapshotTakers =
+			new ConcurrentLinkedQueue<SnapshotTaker>();
+
+	//Snapshot for taker, made on the drawing thread since it reads the layers. With the
+	//render thread it's made between frames and posted back. On the UI thread.
+	private void withSnapshot(SnapshotTaker taker){
+		if(stillRestoring()){
+			return;
+		}
+		if(surface == null){
+			taker.take(myView.picture());
+			return;
+		}
+		snapshotTakers.add(taker);
+		surface.send(TouchQueue.SNAPSHOT, 0, 0, 0, 0);
+	}
+
+	//The picture, background and all, in a bitmap to give back to the pool when
+	//done. Drawn straight from the layers, the view isn't asked to draw. Always full
+	//color, even if the canvas isn't. On the drawing thread.
+	private Bitmap snapshot(){
+		Bitmap out = bitmapPool.getConfig() == Bitmap.Config.ARGB_8888 ? bitmapPool.acquire()
+				: Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		myView.composite(new Canvas(out));
+		return out;
 	}
 
 	//Share the image. Pass the file.
 	public void shareImage(File file){
 		Intent picShare = new Intent(android.content.Intent.ACTION_SEND);
-		picShare.setType("image/jpeg");
+		picShare.setType(mimeType(file));
 		picShare.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
 		startActivity(Intent.createChooser(picShare,"Send picture using:"));
 	}
 
+	private static String mimeType(File file){
+		return file.getName().endsWith(".png") ? "image/png" : "image/jpeg";
+	}
+
 	/*
 	 * Toast and notifications. The communication center.
 	 */
-	//Make a toast noti. Just pass the message.
-	public void makeToast(String msg){
-		Context context = getApplicationContext();
-		int duration = Toast.LENGTH_SHORT;
-		Toast toast = Toast.makeText(context, msg, duration);
-		toast.show();
+	//Make a toast noti. Just pass the message. OK from the render thread too.
+	public void makeToast(final String msg){
+		if(restoring){
+			return;
+		}
+		runOnUiThread(new Runnable(){
+			@Override
+			public void run() {
+				Context context = getApplicationContext();
+				int duration = Toast.LENGTH_SHORT;
+				Toast toast = Toast.makeText(context, msg, duration);
+				toast.show();
+			}
+		});
 	}
 	//Make a noti bar noti. Pass the scrolling text, the title, the real content, and the file for the intent.
 	public void makeNoti(CharSequence tickerText, CharSequence contentTitle, CharSequence contentText, File file){
@@ -750,7 +1280,7 @@ public class Main extends GraphicsActivity {
 		// Make an intent that opens a image viewer
 		Intent notiIntent = new Intent();
 		notiIntent.setAction(android.content.Intent.ACTION_VIEW);
-		notiIntent.setDataAndType(Uri.fromFile(file),"image/jpeg");
+		notiIntent.setDataAndType(Uri.fromFile(file),mimeType(file));
 		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notiIntent, 0);
 
 		notification.flags = Notification.FLAG_AUTO_CANCEL;	//So it goes away
@@ -813,6 +1343,7 @@ public class Main extends GraphicsActivity {
 	public void getFileName(){
 		Intent getName = new Intent(this, FileName.class);
 		getName.putExtra("dirName", dirName);
+		getName.putExtra("ext", "."+saveFormat());
 		startActivityForResult(getName, 4);
 	}
 	//Start the gallery to import a picture
@@ -838,6 +1369,7 @@ public class Main extends GraphicsActivity {
 				if(blendOn){
 					setBrush("keepBlendOn");
 				}
+				brushChanged();
 			}
 			break;
 		case 2:	//This is the brush style chooser
@@ -869,12 +1401,13 @@ public class Main extends GraphicsActivity {
 					setBrush("blendy");
 					mPaint.setAlpha(255);	//No more transparency!
 				}
+				brushChanged();
 			}
 			break;
 		case 3:	//Confirmation to clear screen.
 			if(resultCode==RESULT_OK){
 				if(intent.getStringExtra("clear").equals("drawing")){
-					myView.clearDrawing();
+					doClear();
 					if(dropperOn){
 						dropperOff();
 					}
@@ -883,7 +1416,7 @@ public class Main extends GraphicsActivity {
 					setBackground(false);
 				}
 				else if(intent.getStringExtra("clear").equals("all")){
-					myView.clearDrawing();
+					doClear();
 					setBackground(false);
 					if(dropperOn){
 						dropperOff();
@@ -926,17 +1459,25 @@ public class Main extends GraphicsActivity {
 		}
 	}
 
-	//From Uri to Bitmap
-	public void setBitmap(Uri selectedImage){
-		Bitmap bmap = null;	//Will contain the pixels
-		try {
-			bmap = decodeUri(selectedImage);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		//Set it as the background. picBack method will make it mutable.
-		myView.picBack(bmap);
-		myView.invalidate();
+	//From Uri to Bitmap. Decoded on the I/O thread, after any saves.
+	public void setBitmap(final Uri selectedImage){
+		io.submit(new IoScheduler.Job(IoScheduler.IMPORT, "import"){
+			private Bitmap bmap;	//Will contain the pixels
+			@Override
+			protected void run() throws FileNotFoundException {
+				bmap = decodeUri(selectedImage);
+			}
+			@Override
+			protected void done() {
+				//Set it as the background. picBack method will make it mutable.
+				myView.picBack(bmap);
+				myView.refresh();
+			}
+			@Override
+			protected void failed(Exception e) {
+				makeToast(getString(R.string.import_error));
+			}
+		});
 	}
 
 	//Downsizes bitmap. It will be scaled when it's set in mBitmap, but if we don't
@@ -973,12 +1514,18 @@ public class Main extends GraphicsActivity {
 	//setBrush runs after the brush chooser dialog runs.
 	//Set the brush to whatever brush was returned from there.
 	public void setBrush(String brush){
+		applyBrush(brush);
+		brushChanged();
+	}
+
+	//setBrush without telling the drawing, for when it calls itself.
+	private void applyBrush(String brush){
 		if(brush.equals("round")){
 			//Clear it all
 			mPaint.setStyle(Paint.Style.STROKE);	//Turn off crazy fill (or erase)
 			mPaint.setPathEffect(null);	//Turn off dashed.
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
 		}
 		else if(brush.equals("dash")){
@@ -986,21 +1533,21 @@ public class Main extends GraphicsActivity {
 			mPaint.setStyle(Paint.Style.STROKE);	//Turn off fill
 
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
 		}
 		else if(brush.equals("emboss")){
 			mPaint.setMaskFilter(mEmboss);
 
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
 		}
 		else if(brush.equals("blur")){
 			mPaint.setMaskFilter(mBlur);
 
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
 		}
 		//Blendy is from the brush selection, should toggle.
@@ -1025,12 +1572,27 @@ public class Main extends GraphicsActivity {
 			mPaint.setPathEffect(null);	//Turn off dash
 
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
 		}
 		//else it's probably loading null from prefs, don't do anything.
 	}
 
+	//mPaint changed. The drawing gets its own copy, so it never sees one half
+	//changed. Through the queue if there's a render thread.
+	private void brushChanged(){
+		if(myView == null){
+			return;	//Still starting, it copies mPaint when it's made
+		}
+		Paint copy = new Paint(mPaint);
+		if(surface != null){
+			myView.mSentBrush = copy;
+			surface.send(TouchQueue.BRUSH, 0, 0, 0, 0);
+		}else{
+			myView.useBrush(copy);
+		}
+	}
+
 	//Save color & brush prefs on exit
 	public void saveUsedOnExit(){
 		mPaint.setAlpha(255);	//No transparency for saving.
@@ -1069,23 +1631,110 @@ public class Main extends GraphicsActivity {
 	/*
 	 * This is the custom view. Just a drawing surface.
 	 */
-	public class DrawingView extends View {
+	public class DrawingView extends View implements RenderSurface.Renderer, Journal.Player {
+		//What marks are drawn with. A copy of mPaint that only the drawing thread
+		//uses, replaced whole when mPaint changes, never changed in place. A new
+		//one waits in mNextBrush while marks are still going, so a mark is drawn
+		//and kept with the same brush. mSentBrush is the newest from the UI thread.
+		private Paint mBrush;
+		private Paint mNextBrush;
+		volatile Paint mSentBrush;
+
+		//The drawing layers. mBitmap and mCanvas are the active one, marks go there.
+		private Layers  mLayers;
 		private Bitmap  mBitmap;
 		private Canvas  mCanvas;
-		private Path    mPath;
-		private Paint   mBitmapPaint;
+		//The whole screen, for drawing all of it.
+		private Rect    mFull;
+
+		//Imported picture, for drawing the background on the render surface.
+		volatile Bitmap mBackground;
+		private int     mGray;
+
+		//The whole picture for the dropper, made when it's needed.
+		final ColorSampler mSampler;
+
+		//Takes the eraser's mark out of the screen without clearing the whole layer.
+		private final PorterDuffXfermode mEraseLayer =
+				new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+
+		//Area that changes on undo. Reused so undo doesn't allocate.
+		private RectF   mDirty = new RectF();
+		//History marks make their path in here when redone.
+		private Path    mScratch = new Path();
+
+		//Part of the screen the last touch changed, and rects to hand the view.
+		//Reused so touches don't allocate.
+		private RectF   mTouchDirty = new RectF();
+		//Whole path of a filled brush, for touchDirty.
+		private RectF   mFillDirty = new RectF();
+		private Rect    mInvalid = new Rect();
+		private Rect    mClip = new Rect();
+
+		//Redraws history on all the cores.
+		private ReplayEngine replayEngine = new ReplayEngine();
+
+		//Journal records on start that the checkpoint already has. They go in the
+		//history but don't get drawn.
+		boolean mSkipDraw;
 
 		//Constructor
 		public DrawingView(Context c, int width, int height) {
 			super(c);
 
-			mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-			mCanvas = new Canvas(mBitmap);
-			mPath = new Path();
-			mBitmapPaint = new Paint(Paint.DITHER_FLAG);
+			mLayers = new Layers(bitmapPool);
+			mBitmap = mLayers.getBitmap(0);
+			mCanvas = mLayers.getCanvas(0);
+			mFull = new Rect(0, 0, width, height);
+			if(bigCanvas != null){
+				//Start in the middle of the drawing.
+				mPanX = (width - bigCanvas.getWidth())/2;
+				mPanY = (height - bigCanvas.getHeight())/2;
+				setView();
+			}
+			for(int i=0; i<MAX_STROKES; i++){
+				mStrokes[i] = new Stroke();
+			}
+			mGray = getResources().getColor(R.color.gray);
+			mBrush = new Paint(mPaint);
+			mSampler = new ColorSampler(width, height);
 
 			//Save the clear state.
-			storePp(true);
+			storePp(null);
+		}
+
+		//Done with the view, stop the background threads.
+		public void release(){
+			replayEngine.shutdown();
+		}
+
+		//A new brush from the UI thread. Used once no marks are going.
+		public void useBrush(Paint p){
+			mNextBrush = p;
+			takeBrush();
+		}
+
+		private void takeBrush(){
+			if(mActive == 0 && mNextBrush != null){
+				mBrush = mNextBrush;
+				mNextBrush = null;
+			}
+		}
+
+		//Work out if undo and redo can do anything and have the UI thread show it.
+		//Here since only the drawing thread can look at the history.
+		public void undoRedoChanged(){
+			if(bigCanvas != null){
+				canUndo = bigCanvas.canUndo();
+				canRedo = bigCanvas.canRedo();
+			}else if(tileHistory != null){
+				canUndo = tileHistory.canUndo();
+				canRedo = tileHistory.canRedo();
+			}else{
+				canUndo = historyCount > history.getOldest();
+				canRedo = historyCount < history.getSize()-1;
+			}
+			runOnUiThread(undoRedoUpdater);
 		}
 
 		//Shake things up and pick a random color.
@@ -1094,26 +1743,49 @@ public class Main extends GraphicsActivity {
 			mPaint.setARGB(255, rnd.nextInt(255), rnd.nextInt(255), rnd.nextInt(255));
 			mPaint.setXfermode(null);	//Stop erasing.
 			if(blendOn){
-				setBrush("keepBlendOn");
+				applyBrush("keepBlendOn");
 			}
+			brushChanged();
 			//Set the color icon
 			updateColorChooser(mPaint.getColor());
 		}
 
 		//Clear the drawing
 		public void clearDrawing(){
-			mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-			mCanvas = new Canvas(mBitmap);
-			mPath = new Path();
-			invalidate();
+			mSampler.invalidate();
+			if(journal != null){
+				journal.clear();
+			}
+			mLayers.eraseAll();	//Same buffers, just wiped
+			if(bigCanvas != null){
+				bigCanvas.clear();
+			}
+			if(checkpoint != null){
+				checkpoint.clear();
+				autosaveLater();
+			}
+			cancelStrokes();
 			//Reset the history stuff.
 			historyCount = -1;
 			history.clear();
+			if(tileHistory != null){
+				tileHistory.clear();
+			}
 			//Save the clear state.
-			storePp(true);
-			//Disable both undo/redo
-			updateUndoRedo();
-			myView.invalidate();
+			storePp(null);
+			refresh();
+		}
+
+		//Redraw everything, whichever surface is showing it.
+		public void refresh(){
+			if(restoring){
+				return;	//restored() does it once the drawing's back
+			}
+			if(surface != null){
+				surface.requestRender();
+			}else{
+				invalidate();
+			}
 		}
 
 		//Set the background to a scaled bitmap
@@ -1125,163 +1797,1137 @@ public class Main extends GraphicsActivity {
 			try{
 				Bitmap b = Bitmap.createScaledBitmap(bmap, width, height, false);
 				backImage.setImageBitmap(b);
-				invalidate();
+				mBackground = b;
+				mSampler.invalidate();
+				refresh();
 			}catch(NullPointerException e){
 				makeToast(getString(R.string.import_error));
 			}
 		}
 
-		//Save the path and paint. Boss just allows an override for the
-		//somethingWasActuallyDrawn for constructor and clear
-		public void storePp(boolean boss){
-			//Save it! Need to copy the path and paint, otherwise it won't work.
-			//Seems to be a recurring theme, this inexplicable linkage.
-			if(somethingWasActuallyDrawn || boss){
+		//Save the path and paint of a finished mark. Null saves the clear state, for
+		//the constructor and clear.
+		private void storePp(Stroke s){
+			if(tileHistory != null || bigCanvas != null){
+				return;	//Pixels were saved in touch_up instead.
+			}
+			//Save it! The points get copied, the path is made again from them when
+			//history needs it. The paint is matched to a shared brush, no copy.
+			if(s == null || s.drawn){
 				historyCount++;
-				if(historyCount > history.getDepth()){
-					historyCount = history.getDepth();
+				float[] pts = s == null ? new float[0] : Arrays.copyOf(s.points, s.pointCount);
+				PathPaint pp = new PathPaint(mBrush, pts, mLayers.getActive());
+				history.add(historyCount, pp);
+				if(journal != null && s != null){
+					journal.mark(pp);
+				}
+			}
+		}
+
+		//A mark from the journal, on start. Into the history and onto its layer.
+		@Override
+		public void mark(PathPaint pp){
+			historyCount++;
+			history.add(historyCount, pp);
+			if(mSkipDraw){
+				return;
+			}
+			pp.draw(mLayers.getCanvas(pp.getLayer()), mScratch);
+			mLayers.changed(pp.getLayer());
+			touched(pp.getLayer(), pp.getBounds());
+		}
+
+		//Done with what the checkpoint has. Its tiles go on the layers, or if it
+		//wasn't any good it starts over from blank, which the layers are now. Cut,
+		//undo stops at the checkpoint, the journal from before it is gone.
+		@Override
+		public void caughtUp(boolean restore, boolean cut){
+			mSkipDraw = false;
+			if(restore){
+				checkpoint.restore(mLayers);
+				mBitmap = mLayers.getBitmap(mLayers.getActive());
+				mCanvas = mLayers.getCanvas(mLayers.getActive());
+				//The old marks are on the layers now, they're the bases too.
+				if(tileHistory == null && bigCanvas == null){
+					history.seed(mLayers, historyCount+1, cut);
 				}
-				//Not sure how to do this without declaring a new paint. They're
-				//otherwise linked somehow. Recurring theme.
-				//TODO ask about that. Reference vs Value?
-				Paint temp = new Paint();
-				temp.set(mPaint);
-				history.add(historyCount,new PathPaint(new Path(mPath), temp));
+				return;
 			}
+			history.setOnPixels(false);
+			if(checkpoint != null){
+				checkpoint.clear();
+				autosaveLater();
+			}
+		}
+
+		//Pixels on layer changed under area, the checkpoint needs them.
+		private void touched(int layer, RectF area){
+			if(checkpoint != null){
+				checkpoint.dirty(layer, area);
+				autosaveLater();
+			}
+		}
+
+		//Copy the changed tiles for the checkpoint and have them written. On the
+		//drawing thread, so the layers hold still. The big canvas writes its own.
+		public void checkpoint(){
+			if(restoring){
+				return;	//The layers aren't ours yet, restored() asks again
+			}
+			if(bigCanvas != null){
+				bigCanvas.save();
+				return;
+			}
+			if(checkpoint == null){
+				return;
+			}
+			long gen = journal != null ? journal.getGeneration() : 0;
+			int count = journal != null ? journal.getCount() : 0;
+			if(checkpoint.capture(mLayers, gen, count)){
+				io.submit(new IoScheduler.Job(IoScheduler.AUTOSAVE, "checkpoint"){
+					private long savedGen;
+					private int saved;
+					@Override
+					protected void run() throws Exception {
+						checkpoint.write();
+						savedGen = checkpoint.getGeneration();
+						saved = checkpoint.getCount();
+					}
+					//It's on disk, the journal can start over from here.
+					@Override
+					protected void done(){
+						if(journal != null && saved >= 0){
+							journal.rebase(savedGen, saved);
+						}
+					}
+				});
+			}
+		}
+
+		//A layer change from the journal, on start.
+		@Override
+		public void layer(int op){
+			layerCommand(op);
 		}
 
-		//Undo the last change. Involves getting the last id from the stack and
-		//replacing it for the current bitmap. Decrement the count.
+		//Undo the last change. Only the area under the mark we're taking off changes,
+		//so put the base back there and redraw the marks that touch it. Decrement the count.
 		public void undo(){
-			if(historyCount>0){	//Else we're blank
+			mSampler.invalidate();
+			if(journal != null){
+				journal.undo();
+			}
+			if(mSkipDraw){
+				if(historyCount>history.getOldest()){
+					historyCount--;
+				}
+				return;
+			}
+			if(bigCanvas != null){
+				if(bigCanvas.undo(mDirty)){
+					cancelStrokes();
+					autosaveLater();
+					invalidateArea(mDirty);
+				}else{
+					makeToast("End of undo history.");
+				}
+				return;
+			}
+			if(tileHistory != null){
+				Bitmap layer = tileHistory.undo(mDirty);
+				if(layer != null){
+					cancelStrokes();
+					mLayers.changed(mLayers.indexOf(layer));
+					touched(mLayers.indexOf(layer), mDirty);
+					invalidateArea(mDirty);
+				}else{
+					makeToast("End of undo history.");
+				}
+				return;
+			}
+			if(historyCount>history.getOldest()){	//Else we're blank
+				PathPaint pp = history.get(historyCount);
+				mDirty.set(pp.getBounds());
+				int layer = pp.getLayer();
 				historyCount--;
 
-				//Clear bitmap
-				mBitmap = Bitmap.createBitmap(history.getBase());
-				mCanvas = new Canvas(mBitmap);
-
 				//We are undoing or redoing
-				mPath.reset();
+				cancelStrokes();
 
-				//Loop through all the paths in the history and draw them.
-				for(int i=0; i<=historyCount; i++){
-					//Draw to mBitmap
-					mCanvas.drawPath(history.get(i).getPath(), history.get(i).getPaint());
-				}
+				//Just the layer the mark was on.
+				replay(layer, mDirty);
+				mLayers.changed(layer);
+				touched(layer, mDirty);
 
 				//redraw
-				invalidate();
+				invalidateArea(mDirty);
 			}else{
 				makeToast("End of undo history.");
 			}
 		}
 
-		//Redoing the last undo. If there is one.
+		//Redoing the last undo. If there is one. Everything under it is already on
+		//the bitmap, so it just goes back on top.
 		public void redo(){
+			mSampler.invalidate();
+			if(journal != null){
+				journal.redo();
+			}
+			if(mSkipDraw){
+				if(history.getSize() > historyCount+1){
+					historyCount++;
+				}
+				return;
+			}
+			if(bigCanvas != null){
+				if(bigCanvas.redo(mDirty)){
+					cancelStrokes();
+					autosaveLater();
+					invalidateArea(mDirty);
+				}else{
+					makeToast("End of redo history.");
+				}
+				return;
+			}
+			if(tileHistory != null){
+				Bitmap layer = tileHistory.redo(mDirty);
+				if(layer != null){
+					cancelStrokes();
+					mLayers.changed(mLayers.indexOf(layer));
+					touched(mLayers.indexOf(layer), mDirty);
+					invalidateArea(mDirty);
+				}else{
+					makeToast("End of redo history.");
+				}
+				return;
+			}
 			if(history.getSize() > historyCount+1){	//Then continue, we're in range.
 				historyCount++;
 
-				//Clear bitmap
-				mBitmap = Bitmap.createBitmap(history.getBase());
-				mCanvas = new Canvas(mBitmap);
-
 				//We are undoing or redoing
-				mPath.reset();
+				cancelStrokes();
 
-				//Loop through all the paths in the history and draw them.
-				for(int i=0; i<=historyCount; i++){
-					//Draw to mBitmap
-					mCanvas.drawPath(history.get(i).getPath(), history.get(i).getPaint());
-				}
+				PathPaint pp = history.get(historyCount);
+				pp.draw(mLayers.getCanvas(pp.getLayer()), mScratch);
+				mLayers.changed(pp.getLayer());
+				touched(pp.getLayer(), pp.getBounds());
 
-				invalidate();
+				invalidateArea(pp.getBounds());
 			}else{
 				makeToast("End of redo history.");
 			}
 		}
 
+		//Rebuild just the dirty area of layer from its base and its marks up to
+		//historyCount. Marks that don't touch it are skipped. Split across cores by
+		//the engine.
+		private void replay(int layer, RectF dirty){
+			replayEngine.replay(mLayers.getBitmap(layer), layer, history, historyCount, dirty);
+		}
+
+		//Things from the layer menu.
+		public static final int LAYER_ADD = 0;
+		public static final int LAYER_NEXT = 1;
+		public static final int LAYER_VISIBLE = 2;
+		public static final int LAYER_OPACITY = 3;
+		public static final int LAYER_BLEND = 4;
+
+		//Do something from the layer menu. Goes through the render thread if there
+		//is one, like undo, so layers don't change under a frame.
+		public void layerCommand(int op){
+			mSampler.invalidate();
+			if(journal != null){
+				journal.layer(op);
+			}
+			if(bigCanvas != null){
+				makeToast("Layers only work on the screen sized canvas.");
+				return;
+			}
+			cancelStrokes();
+			int active = mLayers.getActive();
+			switch(op){
+			case LAYER_ADD:
+				int added = mLayers.add();
+				if(added < 0){
+					makeToast("That's all the layers there can be.");
+					return;
+				}
+				if(checkpoint != null && !mSkipDraw){
+					//Whatever it had saved from before is gone.
+					checkpoint.clear(added);
+					autosaveLater();
+				}
+				break;
+			case LAYER_NEXT:
+				mLayers.setActive((active + 1) % mLayers.getCount());
+				break;
+			case LAYER_VISIBLE:
+				mLayers.setVisible(active, !mLayers.isVisible(active));
+				break;
+			case LAYER_OPACITY:
+				//Full, three quarters, half, a quarter, then full again.
+				int alpha = mLayers.getOpacity(active) - 64;
+				mLayers.setOpacity(active, alpha < 63 ? 255 : alpha);
+				break;
+			case LAYER_BLEND:
+				mLayers.setMode(active, (mLayers.getMode(active) + 1) % Layers.MODES.length);
+				break;
+			}
+			active = mLayers.getActive();
+			mBitmap = mLayers.getBitmap(active);
+			mCanvas = mLayers.getCanvas(active);
+
+			String msg = "Layer "+(active+1)+" of "+mLayers.getCount()+", "
+					+(mLayers.getOpacity(active)*100/255)+"%, "
+					+Layers.MODE_NAMES[mLayers.getMode(active)];
+			if(!mLayers.isVisible(active)){
+				msg += ", hidden";
+			}
+			makeToast(msg);
+			refresh();
+		}
+
 		@Override
 		protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 			super.onSizeChanged(w, h, oldw, oldh);
 		}
 
-		//Draws the bitmap and paths.
+		//Only redraw the part of the screen in rect, padded for the brush.
+		private void invalidateArea(RectF rect){
+			if(rect.isEmpty() || surface != null || restoring){
+				return;	//The render thread draws a frame after every batch anyway
+			}
+			if(bigCanvas != null){
+				//rect is on the drawing, the screen is zoomed and panned.
+				mScreenDirty.set(rect);
+				mView.mapRect(mScreenDirty);
+				rect = mScreenDirty;
+			}
+			rect.roundOut(mInvalid);
+			invalidate(mInvalid);
+		}
+
+		//The bucket. Keeps its buffers between fills.
+		private FloodFill mFill = new FloodFill();
+
+		//Big canvas view. Screen is drawing times mScale plus mPan.
+		private static final float MAX_ZOOM = 8;
+		private float   mScale = 1, mPanX, mPanY;
+		private Matrix  mView = new Matrix();
+		private Matrix  mInverse = new Matrix();
+		private RectF   mScreenDirty = new RectF();
+		private RectF   mVisible = new RectF();
+		private float[] mMap = new float[2];
+		private Paint   mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+		//Same, for composite().
+		private RectF   mSnapshotVisible = new RectF();
+		private Paint   mSnapshotPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+		//First two fingers down, for zooming. Screen coordinates.
+		private int     mFingers;
+		private int[]   mFingerIds = new int[2];
+		private float[] mFingerX = new float[2], mFingerY = new float[2];
+		private boolean mPinching;
+		//Finger spread and middle at the last zoom step.
+		private float   mPinchSpan, mPinchX, mPinchY;
+
+		//Keep the drawing covering the screen, then make the matrices.
+		private void setView(){
+			mPanX = Math.max(width - bigCanvas.getWidth()*mScale, Math.min(0, mPanX));
+			mPanY = Math.max(height - bigCanvas.getHeight()*mScale, Math.min(0, mPanY));
+			mView.setScale(mScale, mScale);
+			mView.postTranslate(mPanX, mPanY);
+			mView.invert(mInverse);
+		}
+
+		//Screen x, y to the drawing. Answer is in mMap.
+		private void toDrawing(float x, float y){
+			mMap[0] = x;
+			mMap[1] = y;
+			if(bigCanvas != null){
+				mInverse.mapPoints(mMap);
+			}
+		}
+
+		//Two fingers zoom and pan the big canvas instead of drawing. Until they're
+		//all up, nothing draws. True if this touch was part of that.
+		private boolean zoom(int action, int id, float x, float y){
+			int f;
+			switch(action){
+			case MotionEvent.ACTION_DOWN:
+				if(mFingers < 2){
+					mFingerIds[mFingers] = id;
+					mFingerX[mFingers] = x;
+					mFingerY[mFingers] = y;
+					mFingers++;
+				}
+				if(mFingers == 2){
+					if(!mPinching){
+						cancelStrokes();	//The first finger's mark was really the start of this
+						mPinching = true;
+						refresh();
+					}
+					mPinchSpan = fingerSpan();
+					mPinchX = (mFingerX[0] + mFingerX[1])/2;
+					mPinchY = (mFingerY[0] + mFingerY[1])/2;
+				}
+				return mPinching;
+			case MotionEvent.ACTION_MOVE:
+				f = finger(id);
+				if(f >= 0){
+					mFingerX[f] = x;
+					mFingerY[f] = y;
+				}
+				if(!mPinching || mFingers < 2){
+					return mPinching;
+				}
+				float span = fingerSpan();
+				float cx = (mFingerX[0] + mFingerX[1])/2;
+				float cy = (mFingerY[0] + mFingerY[1])/2;
+				//The spot on the drawing under the fingers stays under them.
+				float dx = (mPinchX - mPanX)/mScale;
+				float dy = (mPinchY - mPanY)/mScale;
+				mScale = Math.max(1, Math.min(MAX_ZOOM, mScale*span/mPinchSpan));
+				mPanX = cx - dx*mScale;
+				mPanY = cy - dy*mScale;
+				mPinchSpan = span;
+				mPinchX = cx;
+				mPinchY = cy;
+				setView();
+				refresh();
+				return true;
+			case MotionEvent.ACTION_UP:
+				f = finger(id);
+				if(f >= 0){
+					if(f == 0){
+						mFingerIds[0] = mFingerIds[1];
+						mFingerX[0] = mFingerX[1];
+						mFingerY[0] = mFingerY[1];
+					}
+					mFingers--;
+				}
+				boolean was = mPinching;
+				if(mFingers == 0){
+					mPinching = false;
+				}
+				return was;
+			}
+			return mPinching;
+		}
+
+		//Which of the zoom fingers id is, or -1.
+		private int finger(int id){
+			for(int f=0; f<mFingers; f++){
+				if(mFingerIds[f] == id){
+					return f;
+				}
+			}
+			return -1;
+		}
+
+		private float fingerSpan(){
+			float dx = mFingerX[0] - mFingerX[1];
+			float dy = mFingerY[0] - mFingerY[1];
+			return Math.max(1, (float)Math.sqrt(dx*dx + dy*dy));
+		}
+
+		//The big canvas, zoomed and panned, and the marks still going. Only tiles
+		//in the clip get drawn.
+		private void drawBig(Canvas canvas){
+			canvas.save();
+			canvas.concat(mView);
+			if(canvas.getClipBounds(mClip)){
+				mVisible.set(mClip.left, mClip.top, mClip.right, mClip.bottom);
+				bigCanvas.render(canvas, mVisible, mTilePaint);
+				drawLive(canvas);
+			}
+			canvas.restore();
+		}
+
+		//Set mTouchDirty to the last n points of s and pad it for the brush. The newest
+		//curve always sits in the box around the last three points. A filled brush
+		//closes the path back to its start, so any of it can change, that's the
+		//whole path.
+		private void touchDirty(Stroke s, int n){
+			float[] pts = s.points;
+			int start = Math.max(0, s.pointCount - n*2);
+			mTouchDirty.set(pts[start], pts[start+1], pts[start], pts[start+1]);
+			for(int i=start+2; i<s.pointCount; i+=2){
+				mTouchDirty.union(pts[i], pts[i+1]);
+			}
+			float pad = PathPaint.pad(mBrush);
+			mTouchDirty.inset(-pad, -pad);
+			if(mBrush.getStyle() != Paint.Style.STROKE){
+				PathPaint.computeBounds(s.path, mBrush, mFillDirty);
+				mTouchDirty.union(mFillDirty);
+			}
+		}
+
+		//Draws the bitmap and paths. Only the part that's clipped gets copied.
 		@Override
 		protected void onDraw(Canvas canvas) {
 			super.onDraw(canvas);
 
 			//Regular drawing stuff. Needs to be done regardless
-			canvas.drawBitmap(mBitmap, 0, 0, mBitmapPaint);
-			canvas.drawPath(mPath, mPaint);
+			if(restoring){
+				return;	//Layers are still being drawn on another thread
+			}
+			if(bigCanvas != null){
+				drawBig(canvas);
+			}else if(canvas.getClipBounds(mClip)){
+				mLayers.drawUnder(canvas, mClip);
+				drawLive(canvas);
+				mLayers.drawOver(canvas, mClip);
+			}
+		}
+
+		//Draw the marks that are still going. Either the layer they've been building
+		//up in, or the whole paths for brushes that need it. Then the guessed ends.
+		private void drawLive(Canvas canvas){
+			if(mIncremental){
+				canvas.drawBitmap(mMasked ? mEffectLayer : mStrokeLayer, 0, 0, mCompositePaint);
+			}
+			for(Stroke s : mStrokes){
+				if(s.id == FREE){
+					continue;
+				}
+				if(!mIncremental){
+					canvas.drawPath(s.path, mBrush);
+				}
+				if(s.predicted){
+					canvas.drawPath(s.tail, mBrush);
+				}
+			}
 		}
 
-		private float mX, mY;
 		private static final float TOUCH_TOLERANCE = 4;
 
+		//One finger's mark. They're all made up front, a finger takes a free one when
+		//it goes down and gives it back when it comes up, so touches don't allocate.
+		private static final int FREE = -1;
+		private static final int MAX_STROKES = 10;
+		//Floats each finger has room for to start, x and y per point.
+		private static final int POINTS = 4096;
+		private final Stroke[] mStrokes = new Stroke[MAX_STROKES];
+		//How many aren't free.
+		private int mActive;
+
+		private class Stroke {
+			//Pointer id of the finger drawing it, or FREE.
+			int id = FREE;
+			Path path = new Path();
+			//Newest sample used, and newest at all. That one can be too close to use.
+			float x, y, rawX, rawY;
+			//Where the path ends right now, the start of the next curve.
+			float segX, segY;
+			//Points the path was made from, so history can make it again. Made once
+			//per finger, big enough for a long mark at 120 samples a second, and kept
+			//for every mark after. Only a mark longer than any so far makes it grow,
+			//and then it stays that big.
+			float[] points = new float[POINTS];
+			int pointCount;
+			//To ignore taps that don't move
+			boolean drawn;
+			//Length of the path so far, for where the next dash starts.
+			float dashed;
+
+			//The guessed end of the mark, drawn for one frame past the real samples.
+			//It goes from where the path ends, through the newest sample, out to where
+			//the finger probably is by now.
+			TouchPredictor predictor = new TouchPredictor();
+			boolean predicted;
+			Path tail = new Path();
+			RectF tailBounds = new RectF();
+
+			void addPoint(float px, float py){
+				if(pointCount + 2 > points.length){
+					points = Arrays.copyOf(points, points.length*2);
+				}
+				points[pointCount++] = px;
+				points[pointCount++] = py;
+			}
+		}
+
+		//The mark pointer id is drawing, or null.
+		private Stroke find(int id){
+			for(Stroke s : mStrokes){
+				if(s.id == id){
+					return s;
+				}
+			}
+			return null;
+		}
+
+		//A free mark for pointer id, or null if every one's taken.
+		private Stroke obtain(int id){
+			if(find(id) != null){
+				return null;	//Already drawing, a down we've seen
+			}
+			for(Stroke s : mStrokes){
+				if(s.id == FREE){
+					s.id = id;
+					return s;
+				}
+			}
+			return null;
+		}
+
+		//Drop every mark that's going without keeping any of them. For undo and clear.
+		private void cancelStrokes(){
+			for(Stroke s : mStrokes){
+				s.id = FREE;
+				s.path.reset();
+				s.predicted = false;
+			}
+			mActive = 0;
+			if(mIncremental){
+				mStrokeLayer.eraseColor(0);
+				if(mMasked){
+					mEffectLayer.eraseColor(0);
+				}
+				mIncremental = false;
+			}
+		}
+
+		//Plain strokes get each new curve drawn once into a layer as it's made, so a
+		//frame costs the same however long the mark is. The layer is drawn opaque and
+		//gets the paint's alpha and mode when it's composited, so overlapping curves
+		//don't double up blendy. The real commit in touch_up still draws the whole path.
+		//Blur and emboss get their effect redone from the layer just around each new
+		//curve, into a second layer that's the one shown. Every finger shares them.
+		private boolean mIncremental;
+		private boolean mMasked;
+		private Bitmap  mEffectLayer;
+		private Canvas  mEffectCanvas;
+		private Rect    mSegRect = new Rect();
+		private Bitmap  mStrokeLayer;
+		private Canvas  mLayerCanvas;
+		private Paint   mLayerPaint = new Paint();
+		private Paint   mCompositePaint = new Paint(Paint.DITHER_FLAG);
+		private Path    mSegment = new Path();
+		//How long each curve is, for dashes.
+		private PathMeasure mMeasure = new PathMeasure();
+		private RectF   mLayerDirty = new RectF();
+
+		//Fill needs the whole path. Dashes don't, each curve starts its dashes where
+		//the one before stopped. The layer is screen sized, so not on the big canvas.
+		private boolean canDrawIncrementally(Paint p){
+			return bigCanvas == null && p.getStyle() == Paint.Style.STROKE
+					&& (p.getPathEffect() == null || p.getPathEffect() == Effects.DASH)
+					&& (p.getMaskFilter() == null || MaskEngine.handles(p));
+		}
+
+		//Get the layer ready for new marks.
+		private void startLayer(){
+			if(mStrokeLayer == null){
+				mStrokeLayer = bitmapPool.acquire();
+				mLayerCanvas = new Canvas(mStrokeLayer);
+			}
+			mLayerPaint.set(mBrush);
+			mLayerPaint.setAlpha(255);
+			mLayerPaint.setXfermode(null);
+			mLayerPaint.setMaskFilter(null);
+			mMasked = MaskEngine.handles(mBrush);
+			if(mMasked && mEffectLayer == null){
+				mEffectLayer = bitmapPool.acquire();
+				mEffectCanvas = new Canvas(mEffectLayer);
+			}
+			mCompositePaint.setAlpha(mBrush.getAlpha());
+			if(mBrush.getXfermode() == Effects.ERASER){
+				//Clear would wipe the whole layer rect, take out just the mark.
+				mCompositePaint.setXfermode(mEraseLayer);
+			}else{
+				mCompositePaint.setXfermode(mBrush.getXfermode());
+			}
+		}
+
+		//Wipe what a finished mark left in the layer. Marks still going might cross
+		//it, so they get put back in that area.
+		private void endLayer(Stroke done){
+			PathPaint.computeBounds(done.path, mBrush, mLayerDirty);	//Takes in the effect too
+			mLayerCanvas.save();
+			mLayerCanvas.clipRect(mLayerDirty);
+			mLayerCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+			//Whole paths, so dashes start from the beginning again.
+			mLayerPaint.setPathEffect(mBrush.getPathEffect());
+			for(Stroke s : mStrokes){
+				if(s.id != FREE){
+					mLayerCanvas.drawPath(s.path, mLayerPaint);
+				}
+			}
+			mLayerCanvas.restore();
+			if(mMasked){
+				if(mActive > 0){
+					mLayerDirty.roundOut(mSegRect);
+					MaskEngine.update(mStrokeLayer, mEffectLayer, mSegRect, mBrush);
+				}else{
+					mEffectCanvas.save();
+					mEffectCanvas.clipRect(mLayerDirty);
+					mEffectCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+					mEffectCanvas.restore();
+				}
+			}
+			if(mActive == 0){
+				mIncremental = false;
+			}
+		}
+
+		//Remake the tail of s after a batch of moves. Adds the old and new tail to
+		//mTouchDirty so both get redrawn.
+		private void updateTail(Stroke s){
+			if(s.predicted){
+				mTouchDirty.union(s.tailBounds);
+			}
+			//Erasing the screen canvas would just punch black holes.
+			s.predicted = mBrush.getXfermode() != Effects.ERASER && s.predictor.predict(mGuess);
+			if(s.predicted){
+				s.tail.reset();
+				s.tail.moveTo(s.segX, s.segY);
+				s.tail.quadTo(s.x, s.y, s.rawX, s.rawY);
+				s.tail.lineTo(mGuess[0], mGuess[1]);
+				PathPaint.computeBounds(s.tail, mBrush, s.tailBounds);
+				mTouchDirty.union(s.tailBounds);
+			}
+		}
+		private float[] mGuess = new float[2];
+
+		//No more guessing, the real end is here. Adds the old tail to mTouchDirty.
+		private void dropTail(Stroke s){
+			if(s.predicted){
+				mTouchDirty.union(s.tailBounds);
+				s.predicted = false;
+			}
+		}
+
 		//Record the path for the touch start, move, and stop.
-		private void touch_start(float x, float y) {
-			mPath.reset();
-			mPath.moveTo(x, y);
-			mX = x;
-			mY = y;
-		}
-		private void touch_move(float x, float y) {
-			float dx = Math.abs(x - mX);
-			float dy = Math.abs(y - mY);
+		//x and y are on the screen, marks are kept on the drawing.
+		private void touch_start(Stroke s, float x, float y, long time) {
+			toDrawing(x, y);
+			x = mMap[0];
+			y = mMap[1];
+			if(mActive++ == 0){
+				//First finger down picks how they all get drawn.
+				mIncremental = canDrawIncrementally(mBrush);
+				if(mIncremental){
+					startLayer();
+				}
+			}
+			s.path.reset();
+			s.path.moveTo(x, y);
+			s.x = s.rawX = s.segX = x;
+			s.y = s.rawY = s.segY = y;
+			s.pointCount = 0;
+			s.addPoint(x, y);
+			s.drawn = false;
+			s.dashed = 0;
+			s.predictor.reset(x, y, time);
+			s.predicted = false;
+		}
+		private void touch_move(Stroke s, float x, float y, long time) {
+			toDrawing(x, y);
+			x = mMap[0];
+			y = mMap[1];
+			s.predictor.add(x, y, time);
+			s.rawX = x;
+			s.rawY = y;
+			float dx = Math.abs(x - s.x);
+			float dy = Math.abs(y - s.y);
 			if (dx >= TOUCH_TOLERANCE || dy >= TOUCH_TOLERANCE) {
-				mPath.quadTo(mX, mY, (x + mX)/2, (y + mY)/2);
-				mX = x;
-				mY = y;
-				somethingWasActuallyDrawn = true;
+				float midX = (x + s.x)/2;
+				float midY = (y + s.y)/2;
+				s.path.quadTo(s.x, s.y, midX, midY);
+				if(mIncremental){
+					//Just the new curve goes in the layer.
+					mSegment.reset();
+					mSegment.moveTo(s.segX, s.segY);
+					mSegment.quadTo(s.x, s.y, midX, midY);
+					if(mBrush.getPathEffect() == Effects.DASH){
+						//The dashes carry on from where the last curve left off.
+						mLayerPaint.setPathEffect(Effects.dashFrom(s.dashed));
+						mMeasure.setPath(mSegment, false);
+						s.dashed += mMeasure.getLength();
+					}
+					mLayerCanvas.drawPath(mSegment, mLayerPaint);
+					if(mMasked){
+						PathPaint.computeBounds(mSegment, mLayerPaint, mLayerDirty);
+						mLayerDirty.roundOut(mSegRect);
+						int reach = MaskEngine.reach(mBrush);
+						mSegRect.inset(-reach, -reach);
+						MaskEngine.update(mStrokeLayer, mEffectLayer, mSegRect, mBrush);
+					}
+				}
+				s.segX = midX;
+				s.segY = midY;
+				s.x = x;
+				s.y = y;
+				s.addPoint(x, y);
+				s.drawn = true;
 			}
 		}
-		private void touch_up() {
-			mPath.lineTo(mX, mY);
+		private void touch_up(Stroke s) {
+			mSampler.invalidate();
+			s.path.lineTo(s.x, s.y);
+			//Keep the pixels it's about to cover, if that's the history we use.
+			if(tileHistory != null && s.drawn){
+				PathPaint.computeBounds(s.path, mBrush, mDirty);
+				tileHistory.record(mBitmap, mDirty);
+			}
 			// commit the path to our offscreen
-			mCanvas.drawPath(mPath, mPaint);
+			if(bigCanvas != null){
+				//Taps get kept too. Undo swaps whole tiles, it'd lose them otherwise.
+				PathPaint.computeBounds(s.path, mBrush, mLayerDirty);
+				bigCanvas.record(mLayerDirty);
+				bigCanvas.draw(s.path, mBrush, mLayerDirty);
+				autosaveLater();
+			}else if(MaskEngine.handles(mBrush)){
+				PathPaint.computeBounds(s.path, mBrush, mLayerDirty);
+				MaskEngine.draw(mCanvas, s.path, mBrush, mLayerDirty);
+				touched(mLayers.getActive(), mLayerDirty);
+			}else{
+				mCanvas.drawPath(s.path, mBrush);
+				if(checkpoint != null){
+					PathPaint.computeBounds(s.path, mBrush, mLayerDirty);
+					touched(mLayers.getActive(), mLayerDirty);
+				}
+			}
+
+			storePp(s);
 
-			storePp(false);
+			s.id = FREE;
+			mActive--;
+			if(mIncremental){
+				endLayer(s);
+			}
 
 			// kill this so we don't double draw
-			mPath.reset();
+			s.path.reset();
 		}
-		//Record the actual touch events to paint
+		//Things from the render surface queue. On the render thread.
+		@Override
+		public void onSample(int action, int id, float x, float y, long time){
+			if(restoring && action != TouchQueue.BRUSH){
+				return;	//Not ours yet
+			}
+			switch(action){
+			case TouchQueue.UNDO:
+				undo();
+				break;
+			case TouchQueue.REDO:
+				redo();
+				break;
+			case TouchQueue.CLEAR:
+				clearDrawing();
+				break;
+			case TouchQueue.LAYER:
+				layerCommand(id);
+				break;
+			case TouchQueue.CHECKPOINT:
+				checkpoint();
+				return;
+			case TouchQueue.BRUSH:
+				useBrush(mSentBrush);
+				return;
+			case TouchQueue.SNAPSHOT:
+				takeSnapshot();
+				return;
+			default:
+				handleTouch(action, id, x, y, time);
+				return;
+			}
+			undoRedoChanged();
+		}
+
+		//A whole frame for the render surface. Background, drawing, then the marks
+		//that are still going.
+		@Override
+		public void render(Canvas canvas){
+			drawBackground(canvas);
+			if(restoring){
+				return;
+			}
+			if(bigCanvas != null){
+				drawBig(canvas);
+				return;
+			}
+			mLayers.drawUnder(canvas, mFull);
+			drawLive(canvas);
+			mLayers.drawOver(canvas, mFull);
+		}
+
+		//The imported picture, or gray if there isn't one.
+		private void drawBackground(Canvas canvas){
+			Bitmap back = mBackground;
+			if(back != null){
+				canvas.drawColor(Color.BLACK);
+				canvas.drawBitmap(back, 0, 0, null);
+			}else{
+				canvas.drawColor(mGray);
+			}
+		}
+
+		//For the dropper to set mPaint and the color icon from the render thread.
+		private volatile int mPicked;
+		private final Runnable colorUpdater = new Runnable(){
+			@Override
+			public void run() {
+				mPaint.setColor(mPicked);
+				brushChanged();
+				updateColorChooser(mPicked);
+			}
+		};
+
+		//Record the actual touch events to paint. Every finger draws its own mark.
 		@Override
 		public boolean onTouchEvent(MotionEvent event) {
-			float x = event.getX();
-			float y = event.getY();
+			if(restoring){
+				return true;	//Eat it, the drawing isn't back yet
+			}
+			int i = event.getActionIndex();
+			switch(event.getActionMasked()){
+			case MotionEvent.ACTION_DOWN:
+			case MotionEvent.ACTION_POINTER_DOWN:
+				handleTouch(MotionEvent.ACTION_DOWN, event.getPointerId(i),
+						event.getX(i), event.getY(i), event.getEventTime());
+				break;
+			case MotionEvent.ACTION_MOVE:
+				if(dropperOn){
+					pickColor(event.getX(), event.getY());
+					break;
+				}
+				//Android saves up the samples between frames in one move. Use them
+				//all for a smoother line, then invalidate once for each finger.
+				changed = true;
+				int n = event.getHistorySize();
+				for(int p=0; p<event.getPointerCount(); p++){
+					int id = event.getPointerId(p);
+					if(bigCanvas != null
+							&& zoom(MotionEvent.ACTION_MOVE, id, event.getX(p), event.getY(p))){
+						continue;
+					}
+					Stroke s = find(id);
+					if(s == null){
+						continue;
+					}
+					int before = s.pointCount;
+					for(int h=0; h<n; h++){
+						touch_move(s, event.getHistoricalX(p, h), event.getHistoricalY(p, h),
+								event.getHistoricalEventTime(h));
+					}
+					touch_move(s, event.getX(p), event.getY(p), event.getEventTime());
+					moved(s, before);
+				}
+				break;
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_POINTER_UP:
+				handleTouch(MotionEvent.ACTION_UP, event.getPointerId(i),
+						event.getX(i), event.getY(i), event.getEventTime());
+				break;
+			case MotionEvent.ACTION_CANCEL:
+				//Finish every mark rather than leave them hanging
+				for(int p=0; p<event.getPointerCount(); p++){
+					handleTouch(MotionEvent.ACTION_UP, event.getPointerId(p),
+							event.getX(p), event.getY(p), event.getEventTime());
+				}
+				break;
+			}
+
+			this.performClick();
+
+			return true;
+		}
+
+		//Invalidate the new curves of s after moves, if any were far enough to draw.
+		//before is its pointCount from before the moves.
+		private void moved(Stroke s, int before){
+			if(s.pointCount != before){
+				//Two more points back is where the first new curve starts.
+				touchDirty(s, (s.pointCount - before)/2 + 2);
+			}else{
+				mTouchDirty.setEmpty();
+			}
+			updateTail(s);
+			invalidateArea(mTouchDirty);
+		}
+
+		//Set the color to whatever's under x, y. For the dropper.
+		//Takes what's showing, background and every layer, averaged over dropperSize.
+		private void pickColor(float x, float y){
+			int colorTouched;
+			if(bigCanvas != null){
+				//The background doesn't pan with it, so just the drawing.
+				toDrawing(x, y);
+				colorTouched = bigCanvas.getPixel((int)mMap[0], (int)mMap[1]);
+				if(colorTouched == 0){
+					return;
+				}
+			}else{
+				//Off the picture altogether, keep the color we have.
+				if(!mSampler.covers((int)x, (int)y, dropperSize)){
+					return;
+				}
+				if(mSampler.isStale()){
+					updateSampler();
+				}
+				colorTouched = mSampler.sample((int)x, (int)y, dropperSize);
+			}
+			//Keep the brush's own alpha, the picture is always opaque.
+			colorTouched = (colorTouched & 0xffffff) | (mBrush.getAlpha() << 24);
+			if(colorTouched != mBrush.getColor()){
+				//Never changed in place, marks in history may have it.
+				mBrush = new Paint(mBrush);
+				mBrush.setColor(colorTouched);
+				//mPaint and the color icon
+				mPicked = colorTouched;
+				runOnUiThread(colorUpdater);
+			}
+		}
+
+		//Put the whole picture, without the marks still going, in the sampler.
+		private void updateSampler(){
+			Bitmap b = snapshot();
+			mSampler.update(b);
+			bitmapPool.release(b);
+		}
+
+		//Snapshot for the oldest one waiting, handed to the UI thread. On the render thread.
+		private void takeSnapshot(){
+			final SnapshotTaker taker = snapshotTakers.poll();
+			if(taker == null){
+				return;
+			}
+			final Picture p = picture();
+			runOnUiThread(new Runnable(){
+				@Override
+				public void run() {
+					taker.take(p);
+				}
+			});
+		}
+
+		//What saving writes. On the drawing thread.
+		public Picture picture(){
+			Picture p = new Picture();
+			if(bigCanvas == null){
+				p.bitmap = snapshot();
+				return p;
+			}
+			//Under the drawing, the way drawBackground() does it.
+			p.tiles = bigCanvas.export();
+			p.picture = mBackground;
+			p.back = p.picture != null ? Color.BLACK : mGray;
+			return p;
+		}
+
+		//The finished picture, the way it's saved. Background, then every layer the
+		//way the screen blends them. Marks still going aren't in it. On the big canvas
+		//it's just what's on screen, saving that goes through picture(). On the drawing
+		//thread, it reads the layers and tiles. Its own rect and paint, it isn't in the
+		//middle of a frame but still.
+		public void composite(Canvas canvas){
+			drawBackground(canvas);
+			if(bigCanvas != null){
+				canvas.save();
+				canvas.concat(mView);
+				mSnapshotVisible.set(0, 0, width, height);
+				mInverse.mapRect(mSnapshotVisible);
+				bigCanvas.render(canvas, mSnapshotVisible, mSnapshotPaint);
+				canvas.restore();
+				return;
+			}
+			mLayers.drawUnder(canvas, mFull);
+			mLayers.drawOver(canvas, mFull);
+		}
+
+		//Fill the area under x, y on the active layer with the color, or clear it if
+		//the eraser's on. Kept in history as just the rects it filled.
+		private void bucket(float x, float y){
+			if(bigCanvas != null){
+				makeToast("Fill only works on the screen sized canvas.");
+				return;
+			}
+			int[] rects = mFill.find(mBitmap, (int)x, (int)y, fillTolerance);
+			if(rects == null){
+				return;
+			}
+			changed = true;
+			mSampler.invalidate();
+			mDirty.set(mFill.getBounds().left, mFill.getBounds().top,
+					mFill.getBounds().right, mFill.getBounds().bottom);
+			if(tileHistory != null){
+				tileHistory.record(mBitmap, mDirty);
+			}
+			Paint fill = new Paint();
+			fill.setStyle(Paint.Style.FILL);
+			if(mBrush.getXfermode() == Effects.ERASER){
+				fill.setXfermode(Effects.ERASER);
+				mFill.paint(mBitmap, 0);
+			}else{
+				fill.setColor(mBrush.getColor());
+				fill.setXfermode(Effects.FILL);
+				mFill.paint(mBitmap, mBrush.getColor());
+			}
+			touched(mLayers.getActive(), mDirty);
+			if(tileHistory == null){
+				historyCount++;
+				PathPaint pp = new PathPaint(fill, rects, mLayers.getActive());
+				history.add(historyCount, pp);
+				if(journal != null){
+					journal.mark(pp);
+				}
+			}
+			invalidateArea(mDirty);
+			undoRedoChanged();
+		}
+
+		//Start, move or finish the mark for pointer id. Or pick a color if it's the dropper.
+		private void handleTouch(int action, int id, float x, float y, long time){
+			takeBrush();
+			if(bigCanvas != null && zoom(action, id, x, y)){
+				return;
+			}
 			if(dropperOn){
-				int colorTouched = mBitmap.getPixel((int)x,(int)y);
-				if(colorTouched != 0){
-					mPaint.setColor(colorTouched);
-					//Set the color icon
-					updateColorChooser(mPaint.getColor());
+				pickColor(x, y);
+			}else if(fillOn){
+				if(action == MotionEvent.ACTION_DOWN){
+					bucket(x, y);
 				}
 			}else{
 				changed = true;	//We know it's been modified since last save.
 
-				switch (event.getAction()) {
+				Stroke s;
+				switch (action) {
 				case MotionEvent.ACTION_DOWN:
-					somethingWasActuallyDrawn = false;
+					s = obtain(id);
+					if(s == null){
+						break;	//Too many fingers
+					}
 					//Record the touch
-					touch_start(x, y);
-					myView.invalidate();
+					touch_start(s, x, y, time);
+					touchDirty(s, 1);
+					invalidateArea(mTouchDirty);
 					break;
 				case MotionEvent.ACTION_MOVE:
-					touch_move(x, y);
-					myView.invalidate();
+					s = find(id);
+					if(s == null){
+						break;
+					}
+					int before = s.pointCount;
+					touch_move(s, x, y, time);
+					moved(s, before);
 					break;
 				case MotionEvent.ACTION_UP:
-					touch_up();
-					myView.invalidate();
-					updateUndoRedo();
+					s = find(id);
+					if(s == null){
+						break;
+					}
+					touchDirty(s, 2);	//Needs doing before the path gets committed
+					dropTail(s);
+					touch_up(s);
+					invalidateArea(mTouchDirty);
+					undoRedoChanged();
 					break;
 				}
 			}
-			
-			this.performClick();
-			
-			return true;
 		}
 		
 		@Override
@@ -0,0 +1,391 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Does the blur and emboss brushes ourselves. The mask filters are software only and
+ * get run over the whole path every time it's drawn. Here the mark is drawn plain
+ * once, then its alpha gets blurred with three box blurs (close enough to a Gaussian),
+ * one row or column at a time, only inside the area that's needed. Emboss lights the
+ * blurred alpha like a height map. Big areas get split over the cores.
+ *
+ * It's done a tile at a time, each with enough around it for the blur to reach, so
+ * a mark covering the whole screen doesn't need screen sized arrays. Each thread
+ * keeps its own arrays and bitmap for that and reuses them.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+public final class MaskEngine {
+	//Box radii for the blurs. Worked out from the same radii as the filters in Effects,
+	//the way Skia turns a radius into a sigma.
+	private static final int[] BLUR_BOXES = boxes(0.57735f*8 + 0.5f);
+	private static final int[] EMBOSS_BOXES = boxes(0.57735f*3.5f + 0.5f);
+
+	//Emboss lighting, same numbers as the EmbossMaskFilter in Effects.
+	private static final float LIGHT = (float)(1/Math.sqrt(3));	//{1,1,1} normalized
+	private static final float AMBIENT = 0.4f;
+	private static final float SPECULAR = 6;
+	//How tall an edge is compared to its slope. Skia uses the same.
+	private static final int DEPTH = 32;
+
+	//Areas bigger than this get split over the cores.
+	private static final int PARALLEL_AREA = 256*256;
+	//Most of the result worked out at once, each way.
+	private static final int TILE = 256;
+
+	//Reused by whichever thread is drawing. pixels and a cover a tile and what's
+	//around it, colors just the tile.
+	private static final class Scratch {
+		int[] pixels = new int[0], a = new int[0], tmp = new int[0], colors = new int[0];
+		Bitmap cover;
+		Canvas canvas;
+		Rect tile = new Rect(), in = new Rect(), clip = new Rect();
+
+		void ensure(int area, int tileArea){
+			if(pixels.length < area){
+				pixels = new int[area];
+				a = new int[area];
+				tmp = new int[area];
+			}
+			if(colors.length < tileArea){
+				colors = new int[tileArea];
+			}
+		}
+
+		//A blank cover at least w by h. Only that corner gets cleared.
+		Canvas cover(int w, int h){
+			if(cover == null || cover.getWidth() < w || cover.getHeight() < h){
+				if(cover != null){
+					cover.recycle();
+				}
+				int side = Math.max(w, h);
+				cover = Bitmap.createBitmap(side, side, Bitmap.Config.ARGB_8888);
+				canvas = new Canvas(cover);
+			}
+			canvas.save();
+			canvas.clipRect(0, 0, w, h);
+			canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+			return canvas;
+		}
+	}
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>(){
+		@Override
+		protected Scratch initialValue(){
+			return new Scratch();
+		}
+	};
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService pool;
+
+	//The eraser can't be CLEAR here, that would wipe the whole rect.
+	private static final PorterDuffXfermode ERASE = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+
+	private MaskEngine(){
+	}
+
+	//True if p uses a filter this does instead.
+	public static boolean handles(Paint p){
+		return p.getMaskFilter() == Effects.BLUR || p.getMaskFilter() == Effects.EMBOSS;
+	}
+
+	//How far past the plain mark the effect reaches.
+	public static int reach(Paint p){
+		int[] b = p.getMaskFilter() == Effects.BLUR ? BLUR_BOXES : EMBOSS_BOXES;
+		return b[0] + b[1] + b[2] + 1;
+	}
+
+	//Draw path with paint's blur or emboss. bounds is the padded area the mark can
+	//touch. Only the part inside the canvas clip gets worked out.
+	public static void draw(Canvas canvas, Path path, Paint paint, RectF bounds){
+		Scratch s = scratch.get();
+		Rect out = new Rect();
+		bounds.roundOut(out);
+		if(!canvas.getClipBounds(s.clip) || !out.intersect(s.clip)){
+			return;
+		}
+		int r = reach(paint);
+
+		//Plain mark, opaque, just for its shape.
+		Paint shape = new Paint(paint);
+		shape.setMaskFilter(null);
+		shape.setXfermode(null);
+		shape.setColor(Color.WHITE);
+		Paint put = new Paint();
+		put.setXfermode(paint.getXfermode() == Effects.ERASER ? ERASE : paint.getXfermode());
+
+		Rect tile = s.tile, in = s.in;
+		for(int ty=out.top; ty<out.bottom; ty+=TILE){
+			for(int tx=out.left; tx<out.right; tx+=TILE){
+				tile.set(tx, ty, Math.min(tx + TILE, out.right), Math.min(ty + TILE, out.bottom));
+				in.set(tile);
+				in.inset(-r, -r);
+				int w = in.width(), h = in.height();
+				s.ensure(w*h, tile.width()*tile.height());
+				Canvas c = s.cover(w, h);
+				c.translate(-in.left, -in.top);
+				c.drawPath(path, shape);
+				c.restore();
+				s.cover.getPixels(s.pixels, 0, w, 0, 0, w, h);
+				if(apply(s, paint, paint.getAlpha())){
+					canvas.drawBitmap(s.colors, 0, tile.width(), tile.left, tile.top,
+							tile.width(), tile.height(), true, put);
+				}
+			}
+		}
+	}
+
+	//For a mark being built up a curve at a time. cover has the plain mark, opaque.
+	//Works out the effect in out and puts it in effect. The paint's own alpha isn't
+	//in it, that goes on when it's composited.
+	public static void update(Bitmap cover, Bitmap effect, Rect out, Paint paint){
+		if(!out.intersect(0, 0, cover.getWidth(), cover.getHeight())){
+			return;
+		}
+		Scratch s = scratch.get();
+		int r = reach(paint);
+		Rect tile = s.tile, in = s.in;
+		for(int ty=out.top; ty<out.bottom; ty+=TILE){
+			for(int tx=out.left; tx<out.right; tx+=TILE){
+				tile.set(tx, ty, Math.min(tx + TILE, out.right), Math.min(ty + TILE, out.bottom));
+				in.set(tile);
+				in.inset(-r, -r);
+				in.intersect(0, 0, cover.getWidth(), cover.getHeight());
+				int w = in.width(), h = in.height();
+				s.ensure(w*h, tile.width()*tile.height());
+				cover.getPixels(s.pixels, 0, w, in.left, in.top, w, h);
+				apply(s, paint, 255);
+				//Even if it's empty, something might have been there before.
+				effect.setPixels(s.colors, 0, tile.width(), tile.left, tile.top,
+						tile.width(), tile.height());
+			}
+		}
+	}
+
+	//The actual work. s.pixels covers s.in, the result goes in s.colors and covers
+	//s.tile, which is inside s.in. False if it's all see-through.
+	private static boolean apply(Scratch s, Paint paint, int alphaScale){
+		Rect in = s.in, out = s.tile;
+		final int w = in.width(), h = in.height();
+		final int[] pixels = s.pixels, a = s.a, colors = s.colors;
+		int ow = out.width(), oh = out.height();
+		//Alpha only, times 256 so the blurs keep some precision.
+		boolean any = false;
+		for(int i=0; i<w*h; i++){
+			a[i] = (pixels[i] >>> 24) << 8;
+			any |= a[i] != 0;
+		}
+		if(!any){
+			Arrays.fill(colors, 0, ow*oh, 0);
+			return false;
+		}
+		boolean emboss = paint.getMaskFilter() == Effects.EMBOSS;
+		blur(a, s.tmp, w, h, emboss ? EMBOSS_BOXES : BLUR_BOXES);
+
+		int color = paint.getColor();
+		int cr = Color.red(color), cg = Color.green(color), cb = Color.blue(color);
+		int dx = out.left - in.left, dy = out.top - in.top;
+		for(int y=0; y<oh; y++){
+			int sy = y + dy;
+			for(int x=0; x<ow; x++){
+				int sx = x + dx;
+				int i = sy*w + sx;
+				if(!emboss){
+					int alpha = (a[i] >> 8) * alphaScale / 255;
+					colors[y*ow + x] = (alpha << 24) | (cr << 16) | (cg << 8) | cb;
+					continue;
+				}
+				//Emboss keeps the shape, the blurred alpha is just the height.
+				int alpha = (pixels[i] >>> 24) * alphaScale / 255;
+				if(alpha == 0){
+					colors[y*ow + x] = 0;
+					continue;
+				}
+				int left = sx > 0 ? a[i-1] : 0;
+				int right = sx < w-1 ? a[i+1] : 0;
+				int up = sy > 0 ? a[i-w] : 0;
+				int down = sy < h-1 ? a[i+w] : 0;
+				float nx = (left - right)/256f;
+				float ny = (up - down)/256f;
+				float len = (float)Math.sqrt(nx*nx + ny*ny + DEPTH*DEPTH);
+				float dot = LIGHT*(nx + ny + DEPTH)/len;
+				float mul = Math.min(1, AMBIENT + Math.max(0, dot));
+				//Light bounced straight at the viewer is the shine.
+				float shine = Math.max(0, 2*dot*DEPTH/len - LIGHT);
+				int add = (int)(255*Math.pow(shine, SPECULAR));
+				int r = Math.min(255, (int)(cr*mul) + add);
+				int g = Math.min(255, (int)(cg*mul) + add);
+				int b = Math.min(255, (int)(cb*mul) + add);
+				colors[y*ow + x] = (alpha << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+		return true;
+	}
+
+	//Three box blurs across then three down. tmp is at least as big as a.
+	private static void blur(final int[] a, final int[] tmp, final int w, final int h,
+			final int[] boxes){
+		boolean split = w*h > PARALLEL_AREA && THREADS > 1;
+		split(h, split, new Range(){
+			@Override
+			public void run(int from, int to) {
+				for(int r : boxes){
+					boxRows(a, tmp, w, r, from, to);
+					System.arraycopy(tmp, from*w, a, from*w, (to-from)*w);
+				}
+			}
+		});
+		split(w, split, new Range(){
+			@Override
+			public void run(int from, int to) {
+				for(int r : boxes){
+					boxColumns(a, tmp, w, h, r, from, to);
+					for(int y=0; y<h; y++){
+						System.arraycopy(tmp, y*w + from, a, y*w + from, to-from);
+					}
+				}
+			}
+		});
+	}
+
+	//Running sum box blur along rows from to to. Outside the area counts as empty.
+	private static void boxRows(int[] src, int[] dst, int w, int r, int from, int to){
+		int div = 2*r + 1;
+		for(int y=from; y<to; y++){
+			int row = y*w;
+			int sum = 0;
+			for(int i=0; i<=r && i<w; i++){
+				sum += src[row+i];
+			}
+			for(int x=0; x<w; x++){
+				dst[row+x] = (sum + div/2)/div;
+				if(x+r+1 < w){
+					sum += src[row+x+r+1];
+				}
+				if(x-r >= 0){
+					sum -= src[row+x-r];
+				}
+			}
+		}
+	}
+
+	//Same as boxRows, down columns from to to.
+	private static void boxColumns(int[] src, int[] dst, int w, int h, int r, int from, int to){
+		int div = 2*r + 1;
+		for(int x=from; x<to; x++){
+			int sum = 0;
+			for(int i=0; i<=r && i<h; i++){
+				sum += src[i*w + x];
+			}
+			for(int y=0; y<h; y++){
+				dst[y*w + x] = (sum + div/2)/div;
+				if(y+r+1 < h){
+					sum += src[(y+r+1)*w + x];
+				}
+				if(y-r >= 0){
+					sum -= src[(y-r)*w + x];
+				}
+			}
+		}
+	}
+
+	//Box radii for three boxes that add up to about a Gaussian of sigma.
+	private static int[] boxes(float sigma){
+		double ideal = Math.sqrt(12*sigma*sigma/3 + 1);
+		int lower = (int)Math.floor(ideal);
+		if(lower % 2 == 0){
+			lower--;
+		}
+		int upper = lower + 2;
+		long m = Math.round((12*sigma*sigma - 3*lower*lower - 4*3*lower - 3)/(-4.0*lower - 4));
+		int[] radii = new int[3];
+		for(int i=0; i<3; i++){
+			radii[i] = ((i < m ? lower : upper) - 1)/2;
+		}
+		return radii;
+	}
+
+	//Some rows or columns, from up to to.
+	private interface Range {
+		void run(int from, int to);
+	}
+
+	//Run range over 0 to n, split over the cores if split. Waits for all of it.
+	private static void split(int n, boolean split, final Range range){
+		if(!split){
+			range.run(0, n);
+			return;
+		}
+		ExecutorService workers = pool();
+		int chunk = (n + THREADS - 1)/THREADS;
+		int tasks = (n + chunk - 1)/chunk;
+		final CountDownLatch done = new CountDownLatch(tasks-1);
+		for(int t=1; t<tasks; t++){
+			final int from = t*chunk;
+			final int to = Math.min(n, from + chunk);
+			workers.execute(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						range.run(from, to);
+					}finally{
+						done.countDown();
+					}
+				}
+			});
+		}
+		range.run(0, Math.min(n, chunk));	//First chunk here
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static synchronized ExecutorService pool(){
+		if(pool == null){
+			pool = Executors.newFixedThreadPool(THREADS-1, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "mask");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+}
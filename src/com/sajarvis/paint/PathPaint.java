@@ -20,25 +20,181 @@
 
 package com.sajarvis.paint;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.RectF;
 
 public class PathPaint {
-	private Paint paint;
-	private Path path;
+	//Extra room for blur and emboss, they bleed outside the stroke. Generous on purpose.
+	private static final float MASK_FILTER_PAD = 24;
+	//Anti aliasing can touch one more pixel on each side.
+	private static final float AA_PAD = 2;
 
-	public PathPaint(Path pth, Paint pnt){
-		paint = pnt;
-		path = pth;
+	//Shared with every other mark that has the same settings.
+	private Brush brush;
+
+	//The touch points the mark was made from, x then y. The path is made from these
+	//only when it's drawn, so a mark is just this array and a paint.
+	private float[] points;
+
+	//Area of the canvas this mark can touch. Used to only redraw what changed.
+	private RectF bounds;
+
+	//A bucket fill is rects instead, left, top, right, bottom. Null for a mark.
+	private int[] rects;
+
+	//Which drawing layer it's on.
+	private int layer;
+
+	//pnt isn't kept, it's matched up with a shared brush.
+	public PathPaint(Paint pnt, float[] pts, int lyr){
+		brush = Brush.of(pnt);
+		points = pts;
+		layer = lyr;
+
+		//The curves never leave the box around their points.
+		bounds = new RectF();
+		if(points.length >= 2){
+			bounds.set(points[0], points[1], points[0], points[1]);
+			for(int i=2; i<points.length; i+=2){
+				bounds.union(points[i], points[i+1]);
+			}
+			float pad = pad(pnt);
+			bounds.inset(-pad, -pad);
+		}
+	}
+
+	//A bucket fill. rcts are from FloodFill, pnt is what fills them.
+	public PathPaint(Paint pnt, int[] rcts, int lyr){
+		brush = Brush.of(pnt);
+		points = new float[0];
+		rects = rcts;
+		layer = lyr;
+
+		bounds = new RectF();
+		for(int i=0; i<rects.length; i+=4){
+			bounds.union(rects[i], rects[i+1], rects[i+2], rects[i+3]);
+		}
+	}
+
+	//Figure out the area a path drawn with paint can touch. Empty if there's no path.
+	public static void computeBounds(Path path, Paint paint, RectF out){
+		if(path.isEmpty()){
+			out.setEmpty();
+			return;
+		}
+		path.computeBounds(out, true);
+		float pad = pad(paint);
+		out.inset(-pad, -pad);
 	}
 
-	//Get the path
-	public Path getPath(){
-		return path;
+	//How far past the path itself the paint can reach.
+	static float pad(Paint paint){
+		float pad = AA_PAD;
+		if(paint.getStyle() != Paint.Style.FILL){
+			pad += paint.getStrokeWidth()/2;
+		}
+		if(paint.getMaskFilter() != null){
+			pad += MASK_FILTER_PAD;
+		}
+		return pad;
 	}
 
-	//Get paint
+	//Make the path the same way DrawingView does while the finger is down. A curve
+	//to the middle of each pair of points, then a line to the last one.
+	public static void buildPath(float[] pts, int count, Path out){
+		out.reset();
+		if(count < 2){
+			return;
+		}
+		out.moveTo(pts[0], pts[1]);
+		for(int i=2; i<count; i+=2){
+			out.quadTo(pts[i-2], pts[i-1], (pts[i] + pts[i-2])/2, (pts[i+1] + pts[i-1])/2);
+		}
+		out.lineTo(pts[count-2], pts[count-1]);
+	}
+
+	//Draw the mark. scratch gets the path made in it, one per thread.
+	public void draw(Canvas canvas, Path scratch){
+		if(rects != null){
+			Paint paint = brush.getPaint();
+			for(int i=0; i<rects.length; i+=4){
+				canvas.drawRect(rects[i], rects[i+1], rects[i+2], rects[i+3], paint);
+			}
+			return;
+		}
+		if(points.length < 2){
+			return;	//The blank starting state
+		}
+		buildPath(points, points.length, scratch);
+		Paint paint = brush.getPaint();
+		if(MaskEngine.handles(paint)){
+			MaskEngine.draw(canvas, scratch, paint, bounds);
+		}else{
+			canvas.drawPath(scratch, paint);
+		}
+	}
+
+	//Write the mark for the history file.
+	public void write(DataOutput out) throws IOException {
+		Effects.write(brush.getPaint(), out);
+		out.writeByte(layer);
+		out.writeInt(points.length);
+		for(float f : points){
+			out.writeFloat(f);
+		}
+		out.writeInt(rects == null ? 0 : rects.length);
+		if(rects != null){
+			for(int r : rects){
+				out.writeInt(r);
+			}
+		}
+	}
+
+	//Read back a mark written by write().
+	public static PathPaint read(DataInput in) throws IOException {
+		Paint pnt = Effects.read(in);
+		int lyr = in.readByte();
+		float[] pts = new float[in.readInt()];
+		for(int i=0; i<pts.length; i++){
+			pts[i] = in.readFloat();
+		}
+		int[] rcts = new int[in.readInt()];
+		for(int i=0; i<rcts.length; i++){
+			rcts[i] = in.readInt();
+		}
+		if(rcts.length > 0){
+			return new PathPaint(pnt, rcts, lyr);
+		}
+		return new PathPaint(pnt, pts, lyr);
+	}
+
+	//Get the points, x then y. Don't change them.
+	public float[] getPoints(){
+		return points;
+	}
+
+	//Get the rects of a bucket fill, null if it's a mark. Don't change them.
+	public int[] getRects(){
+		return rects;
+	}
+
+	//Get paint. It's shared, so don't change it.
 	public Paint getPaint(){
-		return paint;
+		return brush.getPaint();
+	}
+
+	//Get the drawing layer it's on.
+	public int getLayer(){
+		return layer;
+	}
+
+	//Get the area this mark can touch. Empty for the blank starting state.
+	public RectF getBounds(){
+		return bounds;
 	}
 }
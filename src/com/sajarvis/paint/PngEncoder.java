@@ -0,0 +1,659 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Lossless saves. The picture is cut into bands of rows, and every band gets its
+ * rows filtered and deflated on its own core. A band that isn't the last ends with
+ * an empty stored block, which puts it on a byte boundary, so the bands can just be
+ * written one after the other as one zlib stream. Deflater can't end a band like that
+ * on older phones, so the deflate is done here, LZ77 and Huffman codes made for each
+ * block. The checksums of the bands get combined at the end.
+ *
+ * Nothing in here touches Android, the rows come from a Rows.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+public final class PngEncoder {
+	//Where the pixels come from. Called from several threads at once.
+	public interface Rows {
+		//Put count rows starting at top in out, ARGB, width pixels each.
+		void get(int top, int count, int[] out) throws IOException;
+	}
+
+	private static final byte[] SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+	//RGB, the saved picture's always opaque.
+	private static final int BPP = 3;
+	//About how much raw data goes in a band. Smaller balances better, bigger packs better.
+	private static final int BAND_BYTES = 256*1024;
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static ExecutorService pool;
+
+	private PngEncoder(){
+	}
+
+	//Write a width by height PNG of rows to out. Blocks until it's all written.
+	public static void write(Rows rows, int width, int height, OutputStream out)
+			throws IOException {
+		write(rows, width, height, 1, out);
+	}
+
+	//Same, but every band starts on a multiple of align rows, for rows that are
+	//cheaper to get in blocks that size.
+	public static void write(final Rows rows, final int width, final int height, int align,
+			OutputStream out) throws IOException {
+		final int rowBytes = width*BPP + 1;
+		int bandRows = Math.max(1, BAND_BYTES/rowBytes);
+		//At least a band for every core, if there's that many rows.
+		bandRows = Math.min(bandRows, Math.max(1, (height + THREADS - 1)/THREADS));
+		bandRows = Math.max(align, bandRows/align*align);
+		final int bands = (height + bandRows - 1)/bandRows;
+
+		ExecutorService workers = pool();
+		ArrayList<Future<Band>> done = new ArrayList<Future<Band>>(bands);
+		for(int b=0; b<bands; b++){
+			final int top = b*bandRows;
+			final int count = Math.min(bandRows, height - top);
+			final boolean last = b == bands-1;
+			done.add(workers.submit(new Callable<Band>(){
+				@Override
+				public Band call() throws IOException {
+					return band(rows, width, top, count, last);
+				}
+			}));
+		}
+
+		out.write(SIGNATURE);
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8;	//Bits per channel
+		ihdr[9] = 2;	//RGB
+		chunk(out, "IHDR", ihdr, 0, ihdr.length);
+		//zlib header, deflate with a 32K window, default level.
+		chunk(out, "IDAT", new byte[]{0x78, (byte)0x9c}, 0, 2);
+
+		//Bands in order, as they finish.
+		long adler = 1;
+		try{
+			for(Future<Band> f : done){
+				Band band = f.get();
+				chunk(out, "IDAT", band.data, 0, band.length);
+				adler = combine(adler, band.adler, band.raw);
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}catch(ExecutionException e){
+			throw new IOException(e.getCause().toString());
+		}finally{
+			for(Future<Band> f : done){
+				f.cancel(false);
+			}
+		}
+
+		byte[] trailer = new byte[4];
+		putInt(trailer, 0, (int)adler);
+		chunk(out, "IDAT", trailer, 0, 4);
+		chunk(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+
+	//One band, filtered and deflated.
+	private static class Band {
+		byte[] data;
+		int length;
+		long adler;
+		int raw;	//Bytes before deflate
+	}
+
+	private static Band band(Rows rows, int width, int top, int count, boolean last)
+			throws IOException {
+		int rowBytes = width*BPP + 1;
+		//The row before the band too, the first row's filters need it.
+		int first = top > 0 ? top-1 : top;
+		int[] pixels = new int[width*(count + top - first)];
+		rows.get(first, count + top - first, pixels);
+
+		byte[] raw = new byte[rowBytes*count];
+		byte[] prev = new byte[width*BPP];
+		byte[] cur = new byte[width*BPP];
+		int p = 0;
+		if(top > 0){
+			toBytes(pixels, 0, width, prev);
+			p = width;
+		}
+		for(int r=0; r<count; r++){
+			toBytes(pixels, p, width, cur);
+			p += width;
+			filter(cur, prev, raw, r*rowBytes);
+			byte[] t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		Band band = new Band();
+		Adler32 a = new Adler32();
+		a.update(raw, 0, raw.length);
+		band.adler = a.getValue();
+		band.raw = raw.length;
+		Deflate d = new Deflate(raw.length/2 + 1024);
+		d.compress(raw, last);
+		band.data = d.out;
+		band.length = d.outLength;
+		return band;
+	}
+
+	private static void toBytes(int[] pixels, int from, int width, byte[] out){
+		for(int x=0, o=0; x<width; x++){
+			int c = pixels[from + x];
+			out[o++] = (byte)(c >> 16);
+			out[o++] = (byte)(c >> 8);
+			out[o++] = (byte)c;
+		}
+	}
+
+	//Pick the filter that leaves the smallest numbers, the usual guess at what
+	//packs best, and put the row in out at at.
+	private static void filter(byte[] cur, byte[] prev, byte[] out, int at){
+		int n = cur.length;
+		int best = 0;
+		long bestSum = Long.MAX_VALUE;
+		for(int type=0; type<5; type++){
+			long sum = 0;
+			for(int i=0; i<n && sum < bestSum; i++){
+				sum += Math.abs((byte)filtered(type, cur, prev, i));
+			}
+			if(sum < bestSum){
+				bestSum = sum;
+				best = type;
+			}
+		}
+		out[at] = (byte)best;
+		for(int i=0; i<n; i++){
+			out[at + 1 + i] = (byte)filtered(best, cur, prev, i);
+		}
+	}
+
+	private static int filtered(int type, byte[] cur, byte[] prev, int i){
+		int x = cur[i] & 0xff;
+		int a = i >= BPP ? cur[i-BPP] & 0xff : 0;
+		int b = prev[i] & 0xff;
+		switch(type){
+		case 1: return x - a;
+		case 2: return x - b;
+		case 3: return x - ((a + b) >> 1);
+		case 4:
+			int c = i >= BPP ? prev[i-BPP] & 0xff : 0;
+			int pa = Math.abs(b - c), pb = Math.abs(a - c), pc = Math.abs(a + b - 2*c);
+			return x - (pa <= pb && pa <= pc ? a : (pb <= pc ? b : c));
+		}
+		return x;
+	}
+
+	//Adler-32 of two pieces put together, from the Adler-32 of each. Same as zlib's.
+	static long combine(long adler1, long adler2, long len2){
+		final long BASE = 65521;
+		long rem = len2 % BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (rem*sum1) % BASE;
+		sum1 += (adler2 & 0xffff) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+		if(sum1 >= BASE) sum1 -= BASE;
+		if(sum1 >= BASE) sum1 -= BASE;
+		if(sum2 >= BASE << 1) sum2 -= BASE << 1;
+		if(sum2 >= BASE) sum2 -= BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	private static void chunk(OutputStream out, String type, byte[] data, int off, int len)
+			throws IOException {
+		byte[] head = new byte[8];
+		putInt(head, 0, len);
+		for(int i=0; i<4; i++){
+			head[4+i] = (byte)type.charAt(i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(head, 4, 4);
+		crc.update(data, off, len);
+		byte[] tail = new byte[4];
+		putInt(tail, 0, (int)crc.getValue());
+		out.write(head);
+		out.write(data, off, len);
+		out.write(tail);
+	}
+
+	private static void putInt(byte[] b, int at, int v){
+		b[at] = (byte)(v >>> 24);
+		b[at+1] = (byte)(v >>> 16);
+		b[at+2] = (byte)(v >>> 8);
+		b[at+3] = (byte)v;
+	}
+
+	private static synchronized ExecutorService pool(){
+		if(pool == null){
+			pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "png");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/*
+	 * Raw deflate of one band. Matches are found with hash chains, then every block
+	 * of symbols gets its own Huffman codes.
+	 */
+	static final class Deflate {
+		private static final int WSIZE = 32768;
+		private static final int HASH_BITS = 15;
+		private static final int MIN_MATCH = 3, MAX_MATCH = 258;
+		//How hard to look for a match, and when one's good enough to stop.
+		private static final int MAX_CHAIN = 64, NICE = 128;
+		//Symbols in a block before it gets written.
+		private static final int BLOCK = 16384;
+
+		private static final int[] LEN_BASE = {3,4,5,6,7,8,9,10,11,13,15,17,19,23,27,31,
+			35,43,51,59,67,83,99,115,131,163,195,227,258};
+		private static final int[] LEN_EXTRA = {0,0,0,0,0,0,0,0,1,1,1,1,2,2,2,2,
+			3,3,3,3,4,4,4,4,5,5,5,5,0};
+		private static final int[] DIST_BASE = {1,2,3,4,5,7,9,13,17,25,33,49,65,97,129,193,
+			257,385,513,769,1025,1537,2049,3073,4097,6145,8193,12289,16385,24577};
+		private static final int[] DIST_EXTRA = {0,0,0,0,1,1,2,2,3,3,4,4,5,5,6,6,
+			7,7,8,8,9,9,10,10,11,11,12,12,13,13};
+		//Order the code length code lengths go in.
+		private static final int[] CL_ORDER = {16,17,18,0,8,7,9,6,10,5,11,4,12,3,13,2,14,1,15};
+
+		//Length to code, 0 to 258.
+		private static final int[] LEN_CODE = new int[MAX_MATCH+1];
+		//Distance-1 to code, straight for under 256, then by 128s like zlib.
+		private static final int[] DIST_CODE = new int[512];
+		static {
+			for(int c=0; c<LEN_BASE.length; c++){
+				int end = c+1 < LEN_BASE.length ? LEN_BASE[c+1] : MAX_MATCH+1;
+				for(int l=LEN_BASE[c]; l<end; l++){
+					LEN_CODE[l] = c;
+				}
+			}
+			for(int c=0; c<DIST_BASE.length; c++){
+				int end = c+1 < DIST_BASE.length ? DIST_BASE[c+1] : 32769;
+				for(int d=DIST_BASE[c]; d<end; d++){
+					if(d-1 < 256){
+						DIST_CODE[d-1] = c;
+					}else{
+						DIST_CODE[256 + ((d-1) >> 7)] = c;
+					}
+				}
+			}
+		}
+
+		byte[] out;
+		int outLength;
+		private long bits;
+		private int bitCount;
+
+		//Symbols of the block being built. dists[i] is 0 for a literal.
+		private int[] lits = new int[BLOCK];
+		private int[] dists = new int[BLOCK];
+		private int symbols;
+
+		Deflate(int sizeGuess){
+			out = new byte[Math.max(64, sizeGuess)];
+		}
+
+		//Deflate all of data. If last, the stream ends, otherwise it's left on a byte
+		//boundary for the next band.
+		void compress(byte[] data, boolean last){
+			int n = data.length;
+			int[] head = new int[1 << HASH_BITS];
+			Arrays.fill(head, -1);
+			int[] prev = new int[WSIZE];
+			int i = 0;
+			while(i < n){
+				int bestLen = 0, bestDist = 0;
+				if(i + MIN_MATCH <= n){
+					int h = hash(data, i);
+					int cand = head[h];
+					prev[i & (WSIZE-1)] = cand;
+					head[h] = i;
+					int chain = MAX_CHAIN;
+					int limit = Math.min(MAX_MATCH, n - i);
+					while(cand >= 0 && i - cand <= WSIZE && chain-- > 0){
+						if(data[cand + bestLen] == data[i + bestLen]){
+							int len = 0;
+							while(len < limit && data[cand + len] == data[i + len]){
+								len++;
+							}
+							if(len > bestLen){
+								bestLen = len;
+								bestDist = i - cand;
+								if(len >= NICE || len == limit){
+									break;
+								}
+							}
+						}
+						int next = prev[cand & (WSIZE-1)];
+						if(next >= cand){
+							break;	//Slot got reused, chain's gone stale
+						}
+						cand = next;
+					}
+				}
+				if(bestLen >= MIN_MATCH){
+					add(bestLen, bestDist);
+					//Hash what the match covers, so later matches can find it.
+					int end = i + bestLen;
+					for(i++; i<end; i++){
+						if(i + MIN_MATCH <= n){
+							int h = hash(data, i);
+							prev[i & (WSIZE-1)] = head[h];
+							head[h] = i;
+						}
+					}
+				}else{
+					add(data[i] & 0xff, 0);
+					i++;
+				}
+				if(symbols == BLOCK){
+					block(false);
+				}
+			}
+			if(last){
+				block(true);
+			}else{
+				if(symbols > 0){
+					block(false);
+				}
+				//Empty stored block to get to a byte boundary.
+				putBits(0, 3);
+				align();
+				putBits(0, 16);
+				putBits(0xffff, 16);
+			}
+			align();
+		}
+
+		private static int hash(byte[] d, int i){
+			int h = ((d[i] & 0xff) << 10) ^ ((d[i+1] & 0xff) << 5) ^ (d[i+2] & 0xff);
+			return h & ((1 << HASH_BITS) - 1);
+		}
+
+		private void add(int litOrLen, int dist){
+			lits[symbols] = litOrLen;
+			dists[symbols] = dist;
+			symbols++;
+		}
+
+		//Write the symbols so far as a block with its own codes.
+		private void block(boolean last){
+			int[] litFreq = new int[286];
+			int[] distFreq = new int[30];
+			for(int s=0; s<symbols; s++){
+				if(dists[s] == 0){
+					litFreq[lits[s]]++;
+				}else{
+					litFreq[257 + LEN_CODE[lits[s]]]++;
+					distFreq[distCode(dists[s])]++;
+				}
+			}
+			litFreq[256] = 1;	//End of block
+			int[] litLen = lengths(litFreq, 15);
+			int[] distLen = lengths(distFreq, 15);
+			int[] litCodes = codes(litLen);
+			int[] distCodes = codes(distLen);
+
+			int hlit = 286;
+			while(hlit > 257 && litLen[hlit-1] == 0){
+				hlit--;
+			}
+			int hdist = 30;
+			while(hdist > 1 && distLen[hdist-1] == 0){
+				hdist--;
+			}
+			//Both sets of lengths as one run, squeezed with 16, 17 and 18.
+			int[] all = new int[hlit + hdist];
+			System.arraycopy(litLen, 0, all, 0, hlit);
+			System.arraycopy(distLen, 0, all, hlit, hdist);
+			int[] rle = new int[all.length];
+			int[] rleExtra = new int[all.length];
+			int rleCount = 0;
+			int[] clFreq = new int[19];
+			for(int i=0; i<all.length;){
+				int v = all[i];
+				int run = 1;
+				while(i + run < all.length && all[i + run] == v){
+					run++;
+				}
+				if(v == 0 && run >= 3){
+					int r = Math.min(run, 138);
+					rle[rleCount] = r >= 11 ? 18 : 17;
+					rleExtra[rleCount++] = r >= 11 ? r - 11 : r - 3;
+					clFreq[r >= 11 ? 18 : 17]++;
+					i += r;
+				}else if(v != 0 && run >= 4){
+					//The length once, then repeats of it.
+					rle[rleCount++] = v;
+					clFreq[v]++;
+					int r = Math.min(run - 1, 6);
+					rle[rleCount] = 16;
+					rleExtra[rleCount++] = r - 3;
+					clFreq[16]++;
+					i += r + 1;
+				}else{
+					rle[rleCount++] = v;
+					clFreq[v]++;
+					i++;
+				}
+			}
+			int[] clLen = lengths(clFreq, 7);
+			int[] clCodes = codes(clLen);
+			int hclen = 19;
+			while(hclen > 4 && clLen[CL_ORDER[hclen-1]] == 0){
+				hclen--;
+			}
+
+			putBits(last ? 1 : 0, 1);
+			putBits(2, 2);	//Dynamic codes
+			putBits(hlit - 257, 5);
+			putBits(hdist - 1, 5);
+			putBits(hclen - 4, 4);
+			for(int i=0; i<hclen; i++){
+				putBits(clLen[CL_ORDER[i]], 3);
+			}
+			for(int i=0; i<rleCount; i++){
+				int c = rle[i];
+				putBits(clCodes[c], clLen[c]);
+				if(c == 16){
+					putBits(rleExtra[i], 2);
+				}else if(c == 17){
+					putBits(rleExtra[i], 3);
+				}else if(c == 18){
+					putBits(rleExtra[i], 7);
+				}
+			}
+
+			for(int s=0; s<symbols; s++){
+				if(dists[s] == 0){
+					putBits(litCodes[lits[s]], litLen[lits[s]]);
+				}else{
+					int len = lits[s];
+					int lc = LEN_CODE[len];
+					putBits(litCodes[257 + lc], litLen[257 + lc]);
+					putBits(len - LEN_BASE[lc], LEN_EXTRA[lc]);
+					int dc = distCode(dists[s]);
+					putBits(distCodes[dc], distLen[dc]);
+					putBits(dists[s] - DIST_BASE[dc], DIST_EXTRA[dc]);
+				}
+			}
+			putBits(litCodes[256], litLen[256]);
+			symbols = 0;
+		}
+
+		private static int distCode(int dist){
+			return dist <= 256 ? DIST_CODE[dist-1] : DIST_CODE[256 + ((dist-1) >> 7)];
+		}
+
+		//Huffman code lengths for freq, none longer than max. Always at least two
+		//codes, some decoders don't like just one.
+		static int[] lengths(int[] freq, int max){
+			int n = freq.length;
+			int[] f = Arrays.copyOf(freq, n);
+			int used = 0;
+			for(int v : f){
+				if(v > 0){
+					used++;
+				}
+			}
+			for(int i=0; used<2 && i<n; i++){
+				if(f[i] == 0){
+					f[i] = 1;
+					used++;
+				}
+			}
+			while(true){
+				int[] len = huffman(f);
+				int longest = 0;
+				for(int l : len){
+					longest = Math.max(longest, l);
+				}
+				if(longest <= max){
+					return len;
+				}
+				//Too deep. Flatten the counts and try again.
+				for(int i=0; i<n; i++){
+					if(f[i] > 0){
+						f[i] = Math.max(1, f[i] >> 1);
+					}
+				}
+			}
+		}
+
+		//Plain Huffman code lengths. Leaves sorted by count, then two queues.
+		private static int[] huffman(int[] f){
+			int n = f.length;
+			int leaves = 0;
+			long[] sorted = new long[n];
+			for(int i=0; i<n; i++){
+				if(f[i] > 0){
+					sorted[leaves++] = ((long)f[i] << 32) | i;
+				}
+			}
+			Arrays.sort(sorted, 0, leaves);
+			//Nodes: leaves first, then the joined ones in the order they're made.
+			int total = 2*leaves - 1;
+			long[] weight = new long[total];
+			int[] parent = new int[total];
+			for(int i=0; i<leaves; i++){
+				weight[i] = sorted[i] >>> 32;
+			}
+			int leaf = 0, joined = leaves, made = leaves;
+			while(made < total){
+				int[] pick = new int[2];
+				for(int k=0; k<2; k++){
+					if(leaf < leaves && (joined >= made || weight[leaf] <= weight[joined])){
+						pick[k] = leaf++;
+					}else{
+						pick[k] = joined++;
+					}
+				}
+				weight[made] = weight[pick[0]] + weight[pick[1]];
+				parent[pick[0]] = made;
+				parent[pick[1]] = made;
+				made++;
+			}
+			//Depth of every node, from the root down.
+			int[] depth = new int[total];
+			for(int i=total-2; i>=0; i--){
+				depth[i] = depth[parent[i]] + 1;
+			}
+			int[] len = new int[n];
+			for(int i=0; i<leaves; i++){
+				len[(int)sorted[i]] = depth[i];
+			}
+			return len;
+		}
+
+		//Canonical codes for lengths, bits backwards since they go out last bit first.
+		static int[] codes(int[] len){
+			int[] count = new int[16];
+			for(int l : len){
+				count[l]++;
+			}
+			count[0] = 0;
+			int[] next = new int[16];
+			int code = 0;
+			for(int b=1; b<16; b++){
+				code = (code + count[b-1]) << 1;
+				next[b] = code;
+			}
+			int[] codes = new int[len.length];
+			for(int i=0; i<len.length; i++){
+				if(len[i] != 0){
+					codes[i] = Integer.reverse(next[len[i]]++) >>> (32 - len[i]);
+				}
+			}
+			return codes;
+		}
+
+		private void putBits(int value, int n){
+			bits |= (long)value << bitCount;
+			bitCount += n;
+			while(bitCount >= 8){
+				putByte((int)bits);
+				bits >>>= 8;
+				bitCount -= 8;
+			}
+		}
+
+		private void align(){
+			if(bitCount > 0){
+				putByte((int)bits);
+				bits = 0;
+				bitCount = 0;
+			}
+		}
+
+		private void putByte(int b){
+			if(outLength == out.length){
+				out = Arrays.copyOf(out, out.length*2);
+			}
+			out[outLength++] = (byte)b;
+		}
+	}
+}
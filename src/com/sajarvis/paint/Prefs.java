@@ -101,7 +101,64 @@ public class Prefs {
   		return prefs.getBoolean("showPrompt", true);
   	}
 
-  	//Save state
-  	public void savePps(PathPaint pp){
+  	//Which history to keep. "paths" replays marks, "tiles" keeps pixels.
+  	public String getHistoryMode(){
+  		return prefs.getString("history", "paths");
+  	}
+  	public void setHistoryMode(String mode){
+  		Editor editor = prefs.edit();
+  		editor.putString("history", mode);
+  		editor.commit();
+  	}
+
+  	//Whether to draw on a render thread instead of the UI thread.
+  	public boolean useRenderThread(){
+  		return prefs.getBoolean("renderThread", false);
+  	}
+  	public void setRenderThread(boolean on){
+  		Editor editor = prefs.edit();
+  		editor.putBoolean("renderThread", on);
+  		editor.commit();
+  	}
+
+  	//Canvas memory. "auto" picks from how much memory the phone gives us, "low" is
+  	//always 16 bit, "full" is always 32 bit.
+  	public String getCanvasMode(){
+  		return prefs.getString("canvas", "auto");
+  	}
+  	public void setCanvasMode(String mode){
+  		Editor editor = prefs.edit();
+  		editor.putString("canvas", mode);
+  		editor.commit();
+  	}
+
+  	//Whether the drawing is bigger than the screen, with zoom and pan.
+  	public boolean useBigCanvas(){
+  		return prefs.getBoolean("bigCanvas", false);
+  	}
+  	public void setBigCanvas(boolean on){
+  		Editor editor = prefs.edit();
+  		editor.putBoolean("bigCanvas", on);
+  		editor.commit();
+  	}
+
+  	//What saves are written as, "jpeg" or "png".
+  	public String getSaveFormat(){
+  		return prefs.getString("saveFormat", "jpeg");
+  	}
+  	public void setSaveFormat(String format){
+  		Editor editor = prefs.edit();
+  		editor.putString("saveFormat", format);
+  		editor.commit();
+  	}
+
+  	//How many pixels across the dropper averages. Always odd.
+  	public int getDropperSize(){
+  		return prefs.getInt("dropperSize", 1);
+  	}
+  	public void setDropperSize(int size){
+  		Editor editor = prefs.edit();
+  		editor.putInt("dropperSize", size);
+  		editor.commit();
   	}
 }
@@ -0,0 +1,194 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The other drawing surface. All the drawing happens on its own thread instead of
+ * the UI thread, so the panel, toasts and dialogs don't fight with painting, and a
+ * long undo doesn't stop touches from coming in. Touches go in a TouchQueue, the
+ * thread takes everything that's there, then shows one frame. Posting a frame waits
+ * for the display, so that's how fast it goes.
+ *
+ * While there's no surface there's no thread, and whatever gets sent then (a save on
+ * the way out, say) runs straight away on the UI thread instead. The thread finishes
+ * what's queued before it stops, so nothing sent is ever left behind.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.concurrent.locks.LockSupport;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+public class RenderSurface extends SurfaceView implements SurfaceHolder.Callback, Runnable {
+	//What actually draws. Everything here is called on the render thread.
+	public interface Renderer {
+		//A touch or command from the queue. id is the finger's pointer id, time is
+		//the event time in ms.
+		void onSample(int action, int id, float x, float y, long time);
+		//Draw a whole frame
+		void render(Canvas canvas);
+	}
+
+	private Renderer renderer;
+	private TouchQueue queue = new TouchQueue();
+
+	private Thread thread;
+	private volatile boolean running;
+	//Something besides a touch changed, draw a frame anyway.
+	private volatile boolean redraw;
+
+	public RenderSurface(Context context, Renderer r) {
+		super(context);
+		renderer = r;
+		getHolder().addCallback(this);
+	}
+
+	//Touches only get queued here, the render thread does the rest. Every finger
+	//goes in as its own downs, moves and ups.
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		int i = event.getActionIndex();
+		switch(event.getActionMasked()){
+		case MotionEvent.ACTION_DOWN:
+		case MotionEvent.ACTION_POINTER_DOWN:
+			send(TouchQueue.DOWN, event.getPointerId(i), event.getX(i), event.getY(i),
+					event.getEventTime());
+			break;
+		case MotionEvent.ACTION_MOVE:
+			//Samples batched up since the last event, oldest first.
+			int n = event.getHistorySize();
+			for(int p=0; p<event.getPointerCount(); p++){
+				int id = event.getPointerId(p);
+				for(int h=0; h<n; h++){
+					send(TouchQueue.MOVE, id, event.getHistoricalX(p, h),
+							event.getHistoricalY(p, h), event.getHistoricalEventTime(h));
+				}
+				send(TouchQueue.MOVE, id, event.getX(p), event.getY(p), event.getEventTime());
+			}
+			break;
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_POINTER_UP:
+			send(TouchQueue.UP, event.getPointerId(i), event.getX(i), event.getY(i),
+					event.getEventTime());
+			break;
+		case MotionEvent.ACTION_CANCEL:
+			//Finish the marks rather than leave them hanging
+			for(int p=0; p<event.getPointerCount(); p++){
+				send(TouchQueue.UP, event.getPointerId(p), event.getX(p), event.getY(p),
+						event.getEventTime());
+			}
+			break;
+		}
+		return true;
+	}
+
+	//Queue something for the render thread. Only call from the UI thread.
+	public void send(int action, int id, float x, float y, long time){
+		if(!running){
+			//No thread to do it. It's stopped, so this is the drawing thread for now.
+			drain();
+			renderer.onSample(action, id, x, y, time);
+			return;
+		}
+		while(!queue.offer(action, id, x, y, time)){
+			if(action == TouchQueue.MOVE){
+				break;	//Full, a move can be dropped. The next one covers it.
+			}
+			LockSupport.unpark(thread);
+			Thread.yield();
+		}
+		LockSupport.unpark(thread);
+	}
+
+	//Everything queued, oldest first. True if there was anything.
+	private boolean drain(){
+		boolean any = false;
+		while(!queue.isEmpty()){
+			renderer.onSample(queue.action(), queue.id(), queue.x(), queue.y(),
+					queue.time());
+			queue.poll();
+			any = true;
+		}
+		return any;
+	}
+
+	//Draw a frame even if there are no touches. Any thread.
+	public void requestRender(){
+		redraw = true;
+		LockSupport.unpark(thread);
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		running = true;
+		redraw = true;
+		thread = new Thread(this, "render");
+		thread.start();
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		requestRender();
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		//Can't touch the surface after this returns, so wait for the thread.
+		running = false;
+		LockSupport.unpark(thread);
+		boolean retry = true;
+		while(retry){
+			try {
+				thread.join();
+				retry = false;
+			} catch (InterruptedException e) {
+				//Try again
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		SurfaceHolder holder = getHolder();
+		while(running){
+			boolean dirty = redraw;
+			redraw = false;
+			dirty |= drain();
+			if(!dirty){
+				LockSupport.park(this);	//Until a touch or requestRender
+				continue;
+			}
+			Canvas canvas = holder.lockCanvas();
+			if(canvas != null){
+				try{
+					renderer.render(canvas);
+				}finally{
+					holder.unlockCanvasAndPost(canvas);
+				}
+			}
+		}
+		//Anything sent while stopping, a checkpoint on the way out most likely.
+		drain();
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Redraws history using every core. The area being rebuilt is cut into horizontal
+ * bands and each band gets its own clipped canvas on the same bitmap. Bands never
+ * overlap, so they can be drawn at the same time. Inside a band the marks still go
+ * down oldest first, which keeps the eraser and blendy right. Only one layer gets
+ * redrawn, marks on the others are skipped.
+ *
+ * The marks are picked out of history on the calling thread before any band starts.
+ * Getting a mark from the Stack can read the file and move things around, so the
+ * workers only ever see the array.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.RectF;
+
+public class ReplayEngine {
+	//Bands thinner than this aren't worth a thread.
+	private static final int MIN_BAND = 48;
+
+	private ExecutorService pool;
+	private int threads;
+
+	//One canvas and path per band, kept so we don't make new ones every replay.
+	private Canvas[] canvases;
+	private Path[] paths;
+	private Bitmap target;
+	//Marks on the layer being redrawn, oldest first. Only changed between replays.
+	private PathPaint[] marks = new PathPaint[64];
+
+	public ReplayEngine(){
+		threads = Runtime.getRuntime().availableProcessors();
+		if(threads > 1){
+			//The calling thread draws a band too, so one less worker.
+			pool = Executors.newFixedThreadPool(threads-1, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "replay");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		canvases = new Canvas[threads];
+		paths = new Path[threads];
+		for(int i=0; i<threads; i++){
+			canvases[i] = new Canvas();
+			paths[i] = new Path();
+		}
+	}
+
+	//Rebuild dirty on bmp, which is layer, from the history base and the marks on
+	//that layer up through last. Blocks until done.
+	public void replay(Bitmap bmp, int layer, Stack history, int last, RectF dirty){
+		if(dirty.isEmpty()){
+			return;
+		}
+		//Get last into memory first, that can change the base and the first mark.
+		history.get(last);
+		Bitmap base = history.getBase(layer);
+		int count = 0;
+		for(int i=history.getFirst(); i<=last; i++){
+			PathPaint pp = history.get(i);
+			if(pp.getLayer() != layer){
+				continue;
+			}
+			if(count == marks.length){
+				marks = Arrays.copyOf(marks, count*2);
+			}
+			marks[count++] = pp;
+		}
+		try{
+			replayBands(bmp, base, count, dirty);
+		}finally{
+			//Don't hang on to marks history dropped.
+			Arrays.fill(marks, 0, count, null);
+		}
+	}
+
+	private void replayBands(Bitmap bmp, Bitmap base, int count, RectF dirty){
+		if(target != bmp){
+			for(Canvas c : canvases){
+				c.setBitmap(bmp);
+			}
+			target = bmp;
+		}
+
+		int bands = Math.min(threads, Math.max(1, (int)(dirty.height()/MIN_BAND)));
+		if(bands == 1 || pool == null){
+			drawBand(canvases[0], paths[0], base, marks, count,
+					dirty.left, dirty.top, dirty.right, dirty.bottom);
+			return;
+		}
+
+		float step = dirty.height()/bands;
+		final CountDownLatch done = new CountDownLatch(bands-1);
+		for(int b=0; b<bands-1; b++){
+			final Canvas canvas = canvases[b];
+			final Path path = paths[b];
+			final float top = dirty.top + step*b;
+			final float bottom = dirty.top + step*(b+1);
+			final float left = dirty.left, right = dirty.right;
+			final Bitmap fBase = base;
+			final PathPaint[] fMarks = marks;
+			final int fCount = count;
+			pool.execute(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						drawBand(canvas, path, fBase, fMarks, fCount,
+								left, top, right, bottom);
+					}finally{
+						done.countDown();
+					}
+				}
+			});
+		}
+		//Last band on this thread while the others work.
+		drawBand(canvases[bands-1], paths[bands-1], base, marks, count,
+				dirty.left, dirty.top + step*(bands-1), dirty.right, dirty.bottom);
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//Stop the workers. Replays after this run on the calling thread.
+	public void shutdown(){
+		if(pool != null){
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	//Put the base back in one band and draw the first count marks that touch it, in order.
+	private static void drawBand(Canvas canvas, Path path, Bitmap base, PathPaint[] marks,
+			int count, float left, float top, float right, float bottom){
+		canvas.save();
+		canvas.clipRect(left, top, right, bottom);
+		canvas.drawColor(0, PorterDuff.Mode.CLEAR);
+		if(base != null){
+			canvas.drawBitmap(base, 0, 0, null);
+		}
+		for(int i=0; i<count; i++){
+			PathPaint pp = marks[i];
+			if(pp.getBounds().intersects(left, top, right, bottom)){
+				pp.draw(canvas, path);
+			}
+		}
+		canvas.restore();
+	}
+}
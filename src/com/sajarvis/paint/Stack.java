@@ -23,90 +23,598 @@
  * But things are never actually popped off the stack, just referenced, that way a redo
  * can be done as well.
  *
+ * Only the newest marks are kept in memory. Older ones are drawn onto the base and
+ * written to a file, so history never runs out but memory doesn't grow. Going back
+ * past the ones in memory reads them from the file again. Every drawing layer has
+ * its own base, so redrawing one layer never touches the others.
+ *
+ * Every so many marks the bases are copied and written out too, compressed, on the
+ * io thread. Going back past memory starts from the nearest copy before, so it only
+ * redraws a few marks instead of all of them.
+ *
  */
 
 package com.sajarvis.paint;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
 
 public class Stack {
-	private ArrayList<PathPaint> stack;
 	//Arbitrary size. I tested >100 marks and it didn't crash. Seems safe.
 	private final int SIZE = 20;
 
-	//The base, so the stack doesn't need to grow forever. Shows old paths
-	private Bitmap base;
+	//Marks in memory, in a ring so adding and dropping never shift anything. head is
+	//the slot of the oldest one, tail the slot the next one goes in, live how many.
+	private PathPaint[] stack;
+	private int head, tail, live;
+
+	//Index of the mark at head in the whole history. Everything before it is on the base.
+	private int first;
+	//Number of marks in the whole history, in memory or not.
+	private int count;
+	//Marks before this can't be made again, the history started from a checkpoint
+	//whose journal was cut. The copy of the bases at floor is the start. 0 if none.
+	private int floor;
+
+	//The bases, one per layer, so the stack doesn't need to grow forever. Show old
+	//paths. A layer's base is only made once a mark on it goes there.
+	private Bitmap[] bases = new Bitmap[Layers.MAX];
+	private BitmapPool pool;
 
-	//To mark the base
-	private Canvas bCanvas;
+	//To mark the bases
+	private Canvas[] bCanvases = new Canvas[Layers.MAX];
+	//Marks make their path in here when they go on the base
+	private Path scratch = new Path();
 
-	//To make a new base
-	private int width, height;	//For base bitmap size
+	//Marks that left memory. Mark n's record is at offsets[n] in data, its length
+	//then the mark. Marks before spilled have a good record in there.
+	private RandomAccessFile data;
+	private long[] offsets = new long[64];
+	private long dataEnd;
+	private int spilled;
+	private ByteArrayOutputStream record = new ByteArrayOutputStream();
+	private DataOutputStream recordOut = new DataOutputStream(record);
+	//False if the files broke. Then old marks just stay on the base like before.
+	private boolean diskOk;
 
-	public Stack(Context context, int w, int h){
-		stack = new ArrayList<PathPaint>(SIZE);
-		base = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-		bCanvas = new Canvas(base);
-		width = w; height = h;
+	//Copies of the bases every SNAP_EVERY marks, in snaps. The list only has ones
+	//that are done writing. Both guarded by snapLock, the io thread adds to them.
+	private static final int SNAP_EVERY = 100;
+	//Rows compressed at a time.
+	private static final int BAND = 64;
+	private static class Snapshot {
+		int mark;	//Bases have the marks before this one
+		long[] offsets = new long[Layers.MAX];
+		int[] lengths = new int[Layers.MAX];	//0 if the layer had no base
 	}
+	private final Object snapLock = new Object();
+	private ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+	private RandomAccessFile snaps;
+	private long snapEnd;
+	//Goes up when history is cut, so copies started before don't get listed.
+	private int snapEpoch;
+	//Mark of the newest copy started. Drawing thread.
+	private int lastSnap;
+	private IoScheduler io;
+	private Paint copy;
 
-	//Adds a bitmap to the top of the stack. Returns true for success, false for out of
-	//bounds.
-	public boolean add(int index, PathPaint pp){
-		//Comparing stack.size prevents index out of bounds. comparing index prevents
-		//Drawing when we shouldn't be drawing.
-		if(stack.size() > SIZE && index > SIZE-1){	//Delete the first one and shift the rest down
-			//Save the paths by drawing to base canvas before we delete them.
-			bCanvas.drawPath(stack.get(0).getPath(), stack.get(0).getPaint());
-			stack.remove(0);	//Rest will shift automatically
-		}
+	//On start the checkpoint already has the old marks on the layers, so they
+	//don't get drawn onto the bases, just written out. seed() makes the bases
+	//from the layers after. Drawing thread.
+	private boolean onPixels;
 
-		//Add it
-		try{
-			//Add will shift the rest down (if they're there), but we want more of an
-			//overwrite feature, so delete from the spot down.
-			int s = stack.size()-1;
-			for(int n=s; n>=index; n--){
-				stack.remove(n);
-			}
+	//The bases are borrowed from pool. Copies of them get written on io.
+	public Stack(Context context, BitmapPool pool, IoScheduler io){
+		stack = new PathPaint[SIZE];
+		this.pool = pool;
+		this.io = io;
+		copy = new Paint();
+		copy.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
 
-			//Add it!
-			stack.add(index, pp);
+		try{
+			data = new RandomAccessFile(new File(context.getFilesDir(), "history.dat"), "rw");
+			snaps = new RandomAccessFile(new File(context.getFilesDir(), "history.snap"), "rw");
+			diskOk = true;
+			resetFiles();
+		}catch(IOException e){
+			spillFailed(e);
+		}
+	}
 
-			return true;
-		}catch(IndexOutOfBoundsException e){
-			//Cause if they go too fast we can get out of order.
+	//Adds a mark at index of the whole history. Anything after it is gone.
+	//Returns true for success, false if index doesn't make sense.
+	public boolean add(int index, PathPaint pp){
+		if(index < 0 || index > count){
+			return false;
+		}
+		//Make sure the mark before it is in memory so we can add right after it.
+		if(index > 0 && !page(index-1)){
 			return false;
 		}
+
+		//We want more of an overwrite feature, so anything from the spot down is
+		//dropped. Move the tail back and let go of the marks past it.
+		int keep = index - first;
+		for(int n=keep; n<live; n++){
+			stack[slot(n)] = null;
+		}
+		live = keep;
+		tail = slot(live);
+		count = index+1;
+		if(spilled > index){
+			spilled = index;	//Those records are for marks that are gone now
+			dataEnd = offsets[index];
+		}
+		dropSnapshotsAfter(index);
+
+		//Full, the oldest goes to the base and the file.
+		if(live == SIZE){
+			dropOldest();
+		}
+		//Add it!
+		push(pp);
+		return true;
+	}
+
+	//Index of the oldest mark undo can get back to.
+	public int getOldest(){
+		return diskOk ? Math.max(floor - 1, 0) : first;
 	}
 
-	//Get the max size of our history
-	public int getDepth(){
-		return SIZE;
+	//Index of the oldest mark that isn't on the base. Only good until the next get().
+	public int getFirst(){
+		return first;
 	}
 
-	//returns the bitmap at the id. id is kept track of by main.
+	//returns the mark at the id. id is kept track of by main. Reads it back from
+	//the file if it isn't in memory, which can also change the base. Null just
+	//before the floor, that one's on the bases.
 	public PathPaint get(int id){
-		return stack.get(id);
+		if(!page(id) || id < first){
+			return null;
+		}
+		return stack[slot(id-first)];
 	}
 
-	//Return number of elements currently in list
+	//Return number of elements in the whole history
 	public int getSize(){
-		return stack.size();
+		return count;
 	}
 
 	//Start over
 	public void clear(){
-		stack.clear();
-		base = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);//Erase that bmap
-		bCanvas = new Canvas(base);
+		empty();
+		first = 0;
+		count = 0;
+		floor = 0;
+		eraseBases();	//Erase those bmaps
+		if(diskOk){
+			try{
+				resetFiles();
+			}catch(IOException e){
+				spillFailed(e);
+			}
+		}
+	}
+
+	//True while the journal is being done again over a checkpoint. Old marks only
+	//go to the file, seed() or a clear gets the bases right after.
+	public void setOnPixels(boolean on){
+		onPixels = on;
+	}
+
+	//The layers have every mark before upTo and nothing else, straight from the
+	//checkpoint. Those become the bases and memory starts at upTo, so nothing gets
+	//drawn again. Going back past that later makes the bases from the file. If cut,
+	//the file doesn't go back to a blank drawing, so upTo is as far back as it goes.
+	public void seed(Layers layers, int upTo, boolean cut){
+		onPixels = true;
+		while(first < upTo && live > 0){
+			dropOldest();
+		}
+		if(first != upTo){
+			//Redo marks past upTo already left memory, get them back after it.
+			try{
+				if(!diskOk){
+					throw new IOException("history file is gone");
+				}
+				spillAll();
+				empty();
+				first = upTo;
+				for(int n=upTo; n<Math.min(count, upTo + SIZE); n++){
+					push(load(n));
+				}
+			}catch(IOException e){
+				spillFailed(e);
+				empty();	//Can't redo past here then
+				first = count = upTo;
+			}
+		}
+		onPixels = false;
+		for(int l=0; l<Layers.MAX; l++){
+			if(l >= layers.getCount()){
+				if(bases[l] != null){
+					bases[l].eraseColor(0);
+				}
+				continue;
+			}
+			if(bases[l] == null){
+				bases[l] = pool.acquire();
+				bCanvases[l] = new Canvas(bases[l]);
+			}
+			bCanvases[l].drawBitmap(layers.getBitmap(l), 0, 0, copy);
+		}
+		if(cut && diskOk){
+			//Going back has to start from these, keep them where it looks. On the
+			//restore thread, so it's there before any undo.
+			try{
+				int epoch;
+				synchronized(snapLock){
+					epoch = snapEpoch;
+				}
+				writeSnapshot(bases, upTo, epoch);
+				lastSnap = upTo;
+				floor = upTo;
+			}catch(IOException e){
+				spillFailed(e);
+			}
+		}
+	}
+
+	//Get the bitmap with old paths on it for layer. Null if none have gone there.
+	public Bitmap getBase(int layer){
+		return bases[layer];
+	}
+
+	//Get mark id into memory. False if it can't be done.
+	private boolean page(int id){
+		int end = first + live;
+		if(id >= first && id < end){
+			return true;	//Already here, the usual case
+		}
+		if(id == floor - 1 && first == floor){
+			return true;	//It's on the bases, nothing to get
+		}
+		if(!diskOk || id < Math.max(floor - 1, 0) || id >= count){
+			return false;
+		}
+		try{
+			if(id >= end){
+				//Going forward (redo). Slide up one at a time, cheap.
+				while(first + live <= id){
+					PathPaint pp = load(first + live);
+					if(live == SIZE){
+						dropOldest();
+					}
+					push(pp);
+				}
+			}else{
+				//Going back past memory. Everything in memory goes to the file, then
+				//the base is made again from the nearest copy and the file up to the
+				//new window.
+				spillAll();
+				int newFirst = Math.max(floor, id - (SIZE*3)/4);
+				int newEnd = Math.min(count, newFirst + SIZE);
+				empty();
+				eraseBases();
+				int from = loadSnapshot(newFirst);
+				if(from < floor){
+					throw new IOException("copy of the start is bad");
+				}
+				for(int n=from; n<newFirst; n++){
+					toBase(load(n));
+				}
+				first = newFirst;
+				for(int n=newFirst; n<newEnd; n++){
+					push(load(n));
+				}
+			}
+			return true;
+		}catch(IOException e){
+			spillFailed(e);
+			return false;
+		}
+	}
+
+	//Draw the oldest mark in memory onto the base and let it go.
+	private void dropOldest(){
+		PathPaint old = stack[head];
+		if(diskOk && first >= spilled){
+			try{
+				spill(old);
+			}catch(IOException e){
+				spillFailed(e);
+			}
+		}
+		//Save the paths by drawing to base canvas before we delete them.
+		toBase(old);
+		stack[head] = null;
+		head = (head + 1) % SIZE;
+		live--;
+		first++;
+		if(diskOk && !onPixels && first % SNAP_EVERY == 0 && first > lastSnap){
+			snapshot();
+		}
+	}
+
+	//Draw a mark onto the base for its layer, making the base if needed.
+	private void toBase(PathPaint pp){
+		if(onPixels){
+			return;	//Already on the layers, seed() does the bases
+		}
+		int layer = pp.getLayer();
+		if(bases[layer] == null){
+			bases[layer] = pool.acquire();
+			bCanvases[layer] = new Canvas(bases[layer]);
+		}
+		pp.draw(bCanvases[layer], scratch);
+	}
+
+	private void eraseBases(){
+		for(Bitmap b : bases){
+			if(b != null){
+				b.eraseColor(0);
+			}
+		}
+	}
+
+	//Put a mark after the newest one. There has to be room.
+	private void push(PathPaint pp){
+		stack[tail] = pp;
+		tail = (tail + 1) % SIZE;
+		live++;
+	}
+
+	//Forget everything in memory.
+	private void empty(){
+		Arrays.fill(stack, null);
+		head = tail = live = 0;
+	}
+
+	//Slot of the mark n after head.
+	private int slot(int n){
+		return (head + n) % SIZE;
+	}
+
+	//Write every mark in memory that isn't in the file yet.
+	private void spillAll() throws IOException {
+		while(spilled < first + live){
+			spill(stack[slot(spilled - first)]);
+		}
+	}
+
+	//Append mark number spilled to the file. Length and mark go in one write.
+	private void spill(PathPaint pp) throws IOException {
+		record.reset();
+		recordOut.writeInt(0);	//Length, filled in below
+		pp.write(recordOut);
+		recordOut.flush();
+		byte[] bytes = record.toByteArray();
+		int len = bytes.length - 4;
+		bytes[0] = (byte)(len >>> 24);
+		bytes[1] = (byte)(len >>> 16);
+		bytes[2] = (byte)(len >>> 8);
+		bytes[3] = (byte)len;
+
+		data.seek(dataEnd);
+		data.write(bytes);
+		if(spilled == offsets.length){
+			offsets = Arrays.copyOf(offsets, offsets.length*2);
+		}
+		offsets[spilled++] = dataEnd;
+		dataEnd += bytes.length;
+	}
+
+	//Read mark n back from the file.
+	private PathPaint load(int n) throws IOException {
+		data.seek(offsets[n]);
+		byte[] bytes = new byte[data.readInt()];
+		data.readFully(bytes);
+		return PathPaint.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private void resetFiles() throws IOException {
+		data.setLength(0);
+		dataEnd = 0;
+		spilled = 0;
+		lastSnap = 0;
+		synchronized(snapLock){
+			snapEpoch++;
+			snapshots.clear();
+			snaps.setLength(0);
+			snapEnd = 0;
+		}
+	}
+
+	//Copy the bases, which have every mark before first, and have them written on
+	//the io thread. The copy is the only slow part here.
+	private void snapshot(){
+		final Bitmap[] copies = new Bitmap[Layers.MAX];
+		for(int l=0; l<Layers.MAX; l++){
+			if(bases[l] != null){
+				copies[l] = pool.acquire();
+				new Canvas(copies[l]).drawBitmap(bases[l], 0, 0, null);
+			}
+		}
+		final int mark = first;
+		lastSnap = mark;
+		final int epoch;
+		synchronized(snapLock){
+			epoch = snapEpoch;
+		}
+		io.submit(new IoScheduler.Job(IoScheduler.AUTOSAVE, "history snapshot "+mark){
+			@Override
+			protected void run() throws Exception {
+				writeSnapshot(copies, mark, epoch);
+			}
+			@Override
+			protected void finish(){
+				for(Bitmap b : copies){
+					pool.release(b);
+				}
+			}
+		});
+	}
+
+	//Compress the copies onto the end of the snapshot file and list it. io thread.
+	private void writeSnapshot(Bitmap[] copies, int mark, int epoch) throws IOException {
+		Snapshot snap = new Snapshot();
+		snap.mark = mark;
+		byte[][] packed = new byte[Layers.MAX][];
+		for(int l=0; l<Layers.MAX; l++){
+			if(copies[l] != null){
+				packed[l] = pack(copies[l]);
+			}
+		}
+		synchronized(snapLock){
+			if(epoch != snapEpoch){
+				return;	//History was cut since, it's no good
+			}
+			for(int l=0; l<Layers.MAX; l++){
+				if(packed[l] != null){
+					snaps.seek(snapEnd);
+					snaps.write(packed[l]);
+					snap.offsets[l] = snapEnd;
+					snap.lengths[l] = packed[l].length;
+					snapEnd += packed[l].length;
+				}
+			}
+			snapshots.add(snap);
+		}
+	}
+
+	//A bitmap's pixels as they are in memory, compressed a band of rows at a time.
+	private byte[] pack(Bitmap bmp) throws IOException {
+		int w = bmp.getWidth(), h = bmp.getHeight();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+		Bitmap band = Bitmap.createBitmap(w, BAND, bmp.getConfig());
+		Canvas bandCanvas = new Canvas(band);
+		ByteBuffer buf = ByteBuffer.allocate(band.getRowBytes()*BAND);
+		Rect src = new Rect(), dst = new Rect();
+		for(int y=0; y<h; y+=BAND){
+			int rows = Math.min(BAND, h - y);
+			src.set(0, y, w, y + rows);
+			dst.set(0, 0, w, rows);
+			bandCanvas.drawBitmap(bmp, src, dst, copy);
+			buf.clear();
+			band.copyPixelsToBuffer(buf);
+			out.write(buf.array(), 0, band.getRowBytes()*rows);
+		}
+		out.close();
+		deflater.end();
+		band.recycle();
+		return bytes.toByteArray();
+	}
+
+	//Put the newest snapshot with no marks past upTo on the bases, which are
+	//erased. Returns the mark it goes up to, 0 if there wasn't one.
+	private int loadSnapshot(int upTo) throws IOException {
+		synchronized(snapLock){
+			Snapshot best = null;
+			for(Snapshot snap : snapshots){
+				if(snap.mark <= upTo && (best == null || snap.mark > best.mark)){
+					best = snap;
+				}
+			}
+			if(best == null){
+				return 0;
+			}
+			for(int l=0; l<Layers.MAX; l++){
+				if(best.lengths[l] == 0){
+					continue;
+				}
+				byte[] packed = new byte[best.lengths[l]];
+				snaps.seek(best.offsets[l]);
+				snaps.readFully(packed);
+				if(bases[l] == null){
+					bases[l] = pool.acquire();
+					bCanvases[l] = new Canvas(bases[l]);
+				}
+				if(!unpack(packed, bases[l])){
+					eraseBases();
+					return 0;	//Bad copy, do it the long way
+				}
+			}
+			return best.mark;
+		}
+	}
+
+	//Opposite of pack(), onto bmp. False if the data's bad.
+	private boolean unpack(byte[] packed, Bitmap bmp){
+		int w = bmp.getWidth(), h = bmp.getHeight();
+		Bitmap band = Bitmap.createBitmap(w, BAND, bmp.getConfig());
+		byte[] raw = new byte[band.getRowBytes()*BAND];
+		Canvas target = new Canvas(bmp);
+		Inflater inflater = new Inflater();
+		inflater.setInput(packed);
+		boolean ok = true;
+		try{
+			for(int y=0; y<h && ok; y+=BAND){
+				int rows = Math.min(BAND, h - y);
+				int size = band.getRowBytes()*rows;
+				int got = 0, r;
+				while(got < size && (r = inflater.inflate(raw, got, size - got)) > 0){
+					got += r;
+				}
+				ok = got == size;
+				band.copyPixelsFromBuffer(ByteBuffer.wrap(raw));
+				target.save();
+				target.clipRect(0, y, w, y + rows);
+				target.drawBitmap(band, 0, y, copy);
+				target.restore();
+			}
+		}catch(DataFormatException e){
+			ok = false;
+		}
+		inflater.end();
+		band.recycle();
+		return ok;
+	}
+
+	//History after index is gone, so are copies that have any of it, written or not.
+	private void dropSnapshotsAfter(int index){
+		if(lastSnap <= index){
+			return;	//The usual case, nothing cut
+		}
+		synchronized(snapLock){
+			snapEpoch++;
+			lastSnap = 0;
+			for(int i=snapshots.size()-1; i>=0; i--){
+				if(snapshots.get(i).mark > index){
+					snapshots.remove(i);
+				}else{
+					lastSnap = Math.max(lastSnap, snapshots.get(i).mark);
+				}
+			}
+		}
 	}
 
-	//Get the bitmap with old paths on it
-	public Bitmap getBase(){
-		return base;
+	//Stop using the files. Undo can't go past what's in memory after this.
+	private void spillFailed(IOException e){
+		Log.e("Stack", "History file failed, old marks can't be undone", e);
+		diskOk = false;
 	}
 }
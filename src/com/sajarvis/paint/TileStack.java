@@ -0,0 +1,238 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * The other way to keep history. Instead of paths and paints this keeps pixels.
+ * The canvas is cut up into square tiles, and right before a mark is committed the
+ * tiles it's going to touch get copied. Undo and redo just swap those copies with
+ * what's on the canvas, so blur and emboss cost the same to undo as anything else.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.util.ArrayList;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+public class TileStack {
+	//Tile edge in pixels.
+	public static final int TILE = 64;
+
+	//One committed mark. The tiles it touched and the pixels to swap back in.
+	private static class Delta {
+		Bitmap bmp;			//The layer it went on
+		int[] keys;			//ty*cols + tx for each tile
+		Bitmap[] tiles;
+		long bytes;
+	}
+
+	private ArrayList<Delta> stack;
+	//Number of deltas that are on the canvas. Anything past it can be redone.
+	private int cursor;
+
+	//Canvas size in tiles
+	private int cols, rows;
+	private int width, height;
+	//Same as the canvas, so the copies are exact.
+	private Bitmap.Config config;
+
+	//Most memory the tiles can use before the oldest marks are forgotten.
+	private long budget;
+	private long used;
+
+	//Copies pixels exactly, alpha and all.
+	private Paint copy;
+	private Canvas tileCanvas, target;
+	private Bitmap targetBitmap;
+	private Rect src, dst;
+
+	//Spare tile so a swap doesn't have to allocate.
+	private Bitmap scratch;
+
+	public TileStack(int w, int h, Bitmap.Config c, long maxBytes){
+		stack = new ArrayList<Delta>();
+		cursor = 0;
+		width = w; height = h;
+		config = c;
+		cols = (w + TILE - 1)/TILE;
+		rows = (h + TILE - 1)/TILE;
+		budget = maxBytes;
+
+		copy = new Paint();
+		copy.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+		tileCanvas = new Canvas();
+		target = new Canvas();
+		src = new Rect();
+		dst = new Rect();
+	}
+
+	//Save the tiles under bounds. Has to be called before the mark is drawn to bmp.
+	public void record(Bitmap bmp, RectF bounds){
+		//Anything that could be redone is gone now.
+		for(int n=stack.size()-1; n>=cursor; n--){
+			Delta gone = stack.remove(n);
+			for(Bitmap b : gone.tiles){
+				b.recycle();
+			}
+			used -= gone.bytes;
+		}
+
+		int left = Math.max(0, (int)Math.floor(bounds.left)/TILE);
+		int top = Math.max(0, (int)Math.floor(bounds.top)/TILE);
+		int right = Math.min(cols-1, (int)Math.ceil(bounds.right)/TILE);
+		int bottom = Math.min(rows-1, (int)Math.ceil(bounds.bottom)/TILE);
+		if(bounds.isEmpty() || left > right || top > bottom){
+			return;	//Off the canvas, nothing to keep.
+		}
+
+		int count = (right-left+1)*(bottom-top+1);
+		Delta d = new Delta();
+		d.bmp = bmp;
+		d.keys = new int[count];
+		d.tiles = new Bitmap[count];
+		int i = 0;
+		for(int ty=top; ty<=bottom; ty++){
+			for(int tx=left; tx<=right; tx++){
+				Bitmap tile = newTile();
+				copyOut(bmp, tx, ty, tile);
+				d.keys[i] = ty*cols + tx;
+				d.tiles[i] = tile;
+				d.bytes += tile.getRowBytes() * tile.getHeight();
+				i++;
+			}
+		}
+		stack.add(d);
+		cursor++;
+		used += d.bytes;
+
+		//Forget the oldest marks if we're over. Always keep the newest one.
+		while(used > budget && stack.size() > 1){
+			Delta old = stack.remove(0);
+			for(Bitmap b : old.tiles){
+				b.recycle();
+			}
+			used -= old.bytes;
+			cursor--;
+		}
+	}
+
+	//Swap the last mark's tiles back in. dirty gets the area that changed. Returns
+	//the bitmap it was on, or null if there's nothing to undo.
+	public Bitmap undo(RectF dirty){
+		if(!canUndo()){
+			return null;
+		}
+		cursor--;
+		Delta d = stack.get(cursor);
+		swap(d.bmp, d, dirty);
+		return d.bmp;
+	}
+
+	//Swap the undone tiles back out. dirty gets the area that changed. Returns the
+	//bitmap it was on, or null if there's nothing to redo.
+	public Bitmap redo(RectF dirty){
+		if(!canRedo()){
+			return null;
+		}
+		Delta d = stack.get(cursor);
+		swap(d.bmp, d, dirty);
+		cursor++;
+		return d.bmp;
+	}
+
+	public boolean canUndo(){
+		return cursor > 0;
+	}
+
+	public boolean canRedo(){
+		return cursor < stack.size();
+	}
+
+	//Bytes of pixels held for undo and redo.
+	public long getMemoryUsage(){
+		return used;
+	}
+
+	//Start over
+	public void clear(){
+		for(Delta d : stack){
+			for(Bitmap b : d.tiles){
+				b.recycle();
+			}
+		}
+		stack.clear();
+		cursor = 0;
+		used = 0;
+	}
+
+	//Whatever's on the canvas goes into the delta, whatever was in the delta goes on
+	//the canvas. So the same delta works for undo and redo.
+	private void swap(Bitmap bmp, Delta d, RectF dirty){
+		if(targetBitmap != bmp){
+			target.setBitmap(bmp);
+			targetBitmap = bmp;
+		}
+		dirty.setEmpty();
+		for(int i=0; i<d.keys.length; i++){
+			int tx = d.keys[i] % cols;
+			int ty = d.keys[i] / cols;
+			if(scratch == null){
+				scratch = newTile();
+			}
+			copyOut(bmp, tx, ty, scratch);
+
+			tileRect(tx, ty);
+			src.set(0, 0, dst.width(), dst.height());
+			target.drawBitmap(d.tiles[i], src, dst, copy);
+
+			Bitmap old = d.tiles[i];
+			d.tiles[i] = scratch;
+			scratch = old;
+
+			dirty.union(dst.left, dst.top, dst.right, dst.bottom);
+		}
+	}
+
+	//Copy one tile of bmp into tile.
+	private void copyOut(Bitmap bmp, int tx, int ty, Bitmap tile){
+		tileRect(tx, ty);
+		src.set(dst);
+		dst.set(0, 0, src.width(), src.height());
+		tileCanvas.setBitmap(tile);
+		tileCanvas.drawBitmap(bmp, src, dst, copy);
+	}
+
+	//Sets dst to the canvas area of a tile. Edge tiles get cut short.
+	private void tileRect(int tx, int ty){
+		int l = tx*TILE;
+		int t = ty*TILE;
+		dst.set(l, t, Math.min(l+TILE, width), Math.min(t+TILE, height));
+	}
+
+	private Bitmap newTile(){
+		return Bitmap.createBitmap(TILE, TILE, config);
+	}
+}
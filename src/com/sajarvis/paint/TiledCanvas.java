@@ -0,0 +1,588 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * A drawing bigger than the screen, cut into square tiles. A tile is only made once
+ * something is painted on it, the rest of the drawing is just empty. Only the tiles
+ * used most lately stay in memory. The others get written to a file, each tile at
+ * its own spot, and read back when they're needed again.
+ *
+ * Undo keeps copies of the tiles a mark is about to cover, like TileStack.
+ *
+ * The file stays between starts. save() writes every tile that's only in memory,
+ * then which tiles the file has goes in a little index file next to it. Starting
+ * up reads the index back, so the drawing is there again, undo history isn't. The
+ * index is written to the side and renamed over, so a crash leaves the old one.
+ *
+ * Saving the picture reads the tiles straight from the file, a few rows at a time,
+ * on other threads while drawing goes on. See Export.
+ *
+ */
+
+package com.sajarvis.paint;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.RectF;
+import android.util.Log;
+
+public class TiledCanvas {
+	//Tile edge in pixels.
+	public static final int TILE = 256;
+
+	private static final int MAGIC = 0x46505431;	//FPT1
+
+	private int width, height;
+	private int cols, rows;
+	private Bitmap.Config config;
+
+	//Tiles in memory, least lately used first.
+	private LinkedHashMap<Integer, Bitmap> cache;
+	private int maxTiles;
+	//Ever painted. Tiles that aren't are never made.
+	private boolean[] painted;
+	//Newest pixels are only in memory.
+	private boolean[] dirty;
+	//Has a good copy in the file.
+	private boolean[] saved;
+
+	//Tile n is at n*tileBytes. Tiles never painted never get written, so it stays small.
+	//index is magic, width, height and tileBytes, then a byte per tile, 1 if it's in
+	//the file.
+	private RandomAccessFile file;
+	private File index;
+	//Held while a tile goes in the file or an Export reads one, so it never gets half
+	//of one.
+	private final Object fileLock = new Object();
+	private boolean diskOk;
+	private int tileBytes;
+	private byte[] ioBytes;
+	private ByteBuffer io;
+
+	//A tile that got thrown out, to use for the next new one.
+	private Bitmap spare;
+
+	//One mark's undo. The tiles it touched, and what they were before.
+	private static class Change {
+		int[] keys;
+		Bitmap[] tiles;
+	}
+	private ArrayList<Change> changes = new ArrayList<Change>();
+	//Number of changes on the drawing. Anything past it can be redone.
+	private int cursor;
+	//Most marks to keep for undo. Each tile copy is a full tile.
+	private int maxChanges;
+	private Bitmap scratch;
+
+	private Canvas canvas = new Canvas();
+	private Paint copy;
+	//Tile range of the last rect given to range(). left, top, right, bottom.
+	private int[] span = new int[4];
+
+	public TiledCanvas(File f, int w, int h, Bitmap.Config c, int maxInMemory, int undoSteps){
+		width = w; height = h;
+		cols = (w + TILE - 1)/TILE;
+		rows = (h + TILE - 1)/TILE;
+		maxTiles = maxInMemory;
+		maxChanges = undoSteps;
+		cache = new LinkedHashMap<Integer, Bitmap>(maxInMemory, 0.75f, true);
+		painted = new boolean[cols*rows];
+		dirty = new boolean[cols*rows];
+		saved = new boolean[cols*rows];
+
+		copy = new Paint();
+		copy.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+
+		//Sized from a real tile. Newer Androids make 8888 even if 4444 is asked for.
+		spare = Bitmap.createBitmap(TILE, TILE, c);
+		config = spare.getConfig();
+		tileBytes = spare.getRowBytes()*spare.getHeight();
+		ioBytes = new byte[tileBytes];
+		io = ByteBuffer.wrap(ioBytes);
+		index = new File(f.getPath() + ".index");
+		try{
+			file = new RandomAccessFile(f, "rw");
+			diskOk = true;
+			if(!readIndex()){
+				file.setLength(0);
+			}
+		}catch(IOException e){
+			diskFailed(e);
+		}
+	}
+
+	//Which tiles the file has from last time. False if there's no good index for a
+	//drawing this size.
+	private boolean readIndex(){
+		if(!index.exists()){
+			return false;
+		}
+		try{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(index)));
+			try{
+				if(in.readInt() != MAGIC || in.readInt() != width || in.readInt() != height
+						|| in.readInt() != tileBytes){
+					return false;
+				}
+				for(int key=0; key<saved.length; key++){
+					saved[key] = painted[key] = in.readByte() != 0;
+				}
+				return true;
+			}finally{
+				in.close();
+			}
+		}catch(IOException e){
+			Log.e("TiledCanvas", "Tile index unreadable, starting blank", e);
+			Arrays.fill(painted, false);
+			Arrays.fill(saved, false);
+			return false;
+		}
+	}
+
+	//Everything in the file, ready to be read by an Export on other threads. Null if
+	//the file broke. On the drawing thread.
+	public Export export(){
+		save();
+		if(!diskOk){
+			return null;
+		}
+		boolean[] has = new boolean[saved.length];
+		for(int key=0; key<has.length; key++){
+			has[key] = painted[key] && saved[key];
+		}
+		return new Export(has);
+	}
+
+	/*
+	 * The drawing as the file had it when export() was called, read a few rows at a
+	 * time. Any thread, several at once. Tiles written out while it's reading, when
+	 * drawing goes on, can show up in it a whole tile at a time. A clear leaves the
+	 * rest out.
+	 */
+	public class Export {
+		private final boolean[] has;
+		private final FileChannel channel = file.getChannel();
+
+		private Export(boolean[] has){
+			this.has = has;
+		}
+
+		public int getWidth(){
+			return width;
+		}
+
+		public int getHeight(){
+			return height;
+		}
+
+		//Put the drawing over count rows starting at top in out, width pixels a row.
+		//out already has what goes under it and it's opaque.
+		public void blend(int top, int count, int[] out) throws IOException {
+			int rowBytes = tileBytes/TILE;
+			int y = top;
+			while(y < top + count){
+				int ty = y/TILE;
+				int n = Math.min(top + count, (ty + 1)*TILE) - y;
+				ByteBuffer buf = ByteBuffer.allocate(n*rowBytes);
+				Bitmap rows = Bitmap.createBitmap(TILE, n, config);
+				int[] px = new int[TILE*n];
+				try{
+					for(int tx=0; tx<cols; tx++){
+						int key = ty*cols + tx;
+						if(!has[key]){
+							continue;
+						}
+						buf.clear();
+						long at = (long)key*tileBytes + (long)(y - ty*TILE)*rowBytes;
+						synchronized(fileLock){
+							int got;
+							do{
+								got = channel.read(buf, at + buf.position());
+							}while(got > 0 && buf.hasRemaining());
+						}
+						if(buf.hasRemaining()){
+							continue;	//Cleared while we were at it
+						}
+						buf.rewind();
+						rows.copyPixelsFromBuffer(buf);
+						rows.getPixels(px, 0, TILE, 0, 0, TILE, n);
+						over(px, n, tx*TILE, (y - top)*width, out);
+					}
+				}finally{
+					rows.recycle();
+				}
+				y += n;
+			}
+		}
+
+		//n rows of a tile that starts at x, on out from at. Off the right edge is
+		//left out.
+		private void over(int[] px, int n, int x, int at, int[] out){
+			int w = Math.min(TILE, width - x);
+			for(int r=0; r<n; r++){
+				for(int c=0; c<w; c++){
+					int src = px[r*TILE + c];
+					int a = src >>> 24;
+					if(a == 0){
+						continue;
+					}
+					int o = at + r*width + x + c;
+					if(a == 255){
+						out[o] = src;
+						continue;
+					}
+					int dst = out[o];
+					int rr = (((src >> 16) & 0xff)*a + ((dst >> 16) & 0xff)*(255 - a))/255;
+					int gg = (((src >> 8) & 0xff)*a + ((dst >> 8) & 0xff)*(255 - a))/255;
+					int bb = ((src & 0xff)*a + (dst & 0xff)*(255 - a))/255;
+					out[o] = 0xff000000 | (rr << 16) | (gg << 8) | bb;
+				}
+			}
+		}
+	}
+
+	//Write every tile that's only in memory, then the index. After this the file has
+	//the whole drawing. On the drawing thread.
+	public void save(){
+		if(!diskOk){
+			return;
+		}
+		for(Map.Entry<Integer, Bitmap> e : cache.entrySet()){
+			if(dirty[e.getKey()] && !writeTile(e.getKey(), e.getValue())){
+				return;
+			}
+		}
+		try{
+			file.getFD().sync();
+			writeIndex();
+		}catch(IOException e){
+			diskFailed(e);
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		File tmp = new File(index.getPath() + ".tmp");
+		FileOutputStream fOut = new FileOutputStream(tmp);
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fOut));
+			out.writeInt(MAGIC);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(tileBytes);
+			for(int key=0; key<saved.length; key++){
+				out.writeByte(painted[key] && saved[key] ? 1 : 0);
+			}
+			out.flush();
+			fOut.getFD().sync();
+		}finally{
+			fOut.close();
+		}
+		if(!tmp.renameTo(index)){
+			throw new IOException("Couldn't replace " + index);
+		}
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	//Draw path with paint on every tile it touches. bounds is the padded area it can
+	//touch. Blur and emboss only work out the part on each tile.
+	public void draw(Path path, Paint paint, RectF bounds){
+		if(!range(bounds)){
+			return;
+		}
+		for(int ty=span[1]; ty<=span[3]; ty++){
+			for(int tx=span[0]; tx<=span[2]; tx++){
+				int key = ty*cols + tx;
+				canvas.setBitmap(tile(key, true));
+				canvas.save();
+				canvas.translate(-tx*TILE, -ty*TILE);
+				if(MaskEngine.handles(paint)){
+					MaskEngine.draw(canvas, path, paint, bounds);
+				}else{
+					canvas.drawPath(path, paint);
+				}
+				canvas.restore();
+				dirty[key] = true;
+			}
+		}
+	}
+
+	//Draw the tiles in visible onto canvas, which is already in drawing coordinates.
+	//Tiles that were never painted are skipped.
+	public void render(Canvas target, RectF visible, Paint paint){
+		if(!range(visible)){
+			return;
+		}
+		for(int ty=span[1]; ty<=span[3]; ty++){
+			for(int tx=span[0]; tx<=span[2]; tx++){
+				Bitmap t = tile(ty*cols + tx, false);
+				if(t != null){
+					target.drawBitmap(t, tx*TILE, ty*TILE, paint);
+				}
+			}
+		}
+	}
+
+	//Color at x, y of the drawing. 0 off the edge or where nothing's painted.
+	public int getPixel(int x, int y){
+		if(x < 0 || y < 0 || x >= width || y >= height){
+			return 0;
+		}
+		Bitmap t = tile((y/TILE)*cols + x/TILE, false);
+		return t == null ? 0 : t.getPixel(x % TILE, y % TILE);
+	}
+
+	//Keep the tiles under bounds for undo. Has to be called before the mark is drawn.
+	public void record(RectF bounds){
+		//Anything that could be redone is gone now.
+		for(int n=changes.size()-1; n>=cursor; n--){
+			recycle(changes.remove(n));
+		}
+		if(!range(bounds)){
+			return;
+		}
+		int count = (span[2]-span[0]+1)*(span[3]-span[1]+1);
+		Change c = new Change();
+		c.keys = new int[count];
+		c.tiles = new Bitmap[count];
+		int i = 0;
+		for(int ty=span[1]; ty<=span[3]; ty++){
+			for(int tx=span[0]; tx<=span[2]; tx++){
+				int key = ty*cols + tx;
+				c.keys[i] = key;
+				c.tiles[i] = Bitmap.createBitmap(TILE, TILE, config);
+				copyTile(tile(key, true), c.tiles[i]);
+				i++;
+			}
+		}
+		changes.add(c);
+		cursor++;
+		if(changes.size() > maxChanges){
+			recycle(changes.remove(0));
+			cursor--;
+		}
+	}
+
+	//Swap the last mark's tiles back in. dirty gets the area that changed.
+	public boolean undo(RectF dirtyArea){
+		if(!canUndo()){
+			return false;
+		}
+		cursor--;
+		swap(changes.get(cursor), dirtyArea);
+		return true;
+	}
+
+	//Swap the undone tiles back out. dirty gets the area that changed.
+	public boolean redo(RectF dirtyArea){
+		if(!canRedo()){
+			return false;
+		}
+		swap(changes.get(cursor), dirtyArea);
+		cursor++;
+		return true;
+	}
+
+	public boolean canUndo(){
+		return cursor > 0;
+	}
+
+	public boolean canRedo(){
+		return cursor < changes.size();
+	}
+
+	//Start over with nothing painted.
+	public void clear(){
+		for(Bitmap b : cache.values()){
+			b.recycle();
+		}
+		cache.clear();
+		for(Change c : changes){
+			recycle(c);
+		}
+		changes.clear();
+		cursor = 0;
+		Arrays.fill(painted, false);
+		Arrays.fill(dirty, false);
+		Arrays.fill(saved, false);
+		if(diskOk){
+			try{
+				synchronized(fileLock){
+					file.setLength(0);
+				}
+				writeIndex();
+			}catch(IOException e){
+				diskFailed(e);
+			}
+		}
+	}
+
+	//Whatever's on the drawing goes into the change, whatever was in the change
+	//goes on the drawing. So the same change works for undo and redo.
+	private void swap(Change c, RectF dirtyArea){
+		dirtyArea.setEmpty();
+		for(int i=0; i<c.keys.length; i++){
+			int key = c.keys[i];
+			Bitmap t = tile(key, true);
+			if(scratch == null){
+				scratch = Bitmap.createBitmap(TILE, TILE, config);
+			}
+			copyTile(t, scratch);
+			copyTile(c.tiles[i], t);
+			Bitmap old = c.tiles[i];
+			c.tiles[i] = scratch;
+			scratch = old;
+			dirty[key] = true;
+
+			float l = (key % cols)*TILE;
+			float top = (key / cols)*TILE;
+			dirtyArea.union(l, top, l+TILE, top+TILE);
+		}
+	}
+
+	//Sets span to the tiles under r. False if none are.
+	private boolean range(RectF r){
+		if(r.isEmpty()){
+			return false;
+		}
+		span[0] = Math.max(0, (int)Math.floor(r.left)/TILE);
+		span[1] = Math.max(0, (int)Math.floor(r.top)/TILE);
+		span[2] = Math.min(cols-1, (int)Math.ceil(r.right)/TILE);
+		span[3] = Math.min(rows-1, (int)Math.ceil(r.bottom)/TILE);
+		return span[0] <= span[2] && span[1] <= span[3];
+	}
+
+	//Get tile key into memory. If it was never painted it's made if make is true,
+	//otherwise that's null.
+	private Bitmap tile(int key, boolean make){
+		Bitmap t = cache.get(key);
+		if(t != null){
+			return t;
+		}
+		if(!painted[key] && !make){
+			return null;
+		}
+		trim();
+		t = newTile();
+		if(painted[key] && saved[key]){
+			try{
+				file.seek((long)key*tileBytes);
+				file.readFully(ioBytes);
+				io.rewind();
+				t.copyPixelsFromBuffer(io);
+			}catch(IOException e){
+				diskFailed(e);
+			}
+		}
+		painted[key] = true;
+		cache.put(key, t);
+		return t;
+	}
+
+	//Make room for one more tile by writing out the ones used least lately.
+	private void trim(){
+		Iterator<Map.Entry<Integer, Bitmap>> it = cache.entrySet().iterator();
+		while(cache.size() >= maxTiles && it.hasNext()){
+			Map.Entry<Integer, Bitmap> e = it.next();
+			int key = e.getKey();
+			if(dirty[key] && (!diskOk || !writeTile(key, e.getValue()))){
+				return;	//Nowhere to put it, it has to stay
+			}
+			if(spare == null){
+				spare = e.getValue();
+			}else{
+				e.getValue().recycle();
+			}
+			it.remove();
+		}
+	}
+
+	//Put tile key in its spot in the file. False if the file broke.
+	private boolean writeTile(int key, Bitmap t){
+		try{
+			io.rewind();
+			t.copyPixelsToBuffer(io);
+			synchronized(fileLock){
+				file.seek((long)key*tileBytes);
+				file.write(ioBytes);
+			}
+			saved[key] = true;
+			dirty[key] = false;
+			return true;
+		}catch(IOException e){
+			diskFailed(e);
+			return false;
+		}
+	}
+
+	private Bitmap newTile(){
+		if(spare != null){
+			Bitmap t = spare;
+			spare = null;
+			t.eraseColor(0);
+			return t;
+		}
+		return Bitmap.createBitmap(TILE, TILE, config);
+	}
+
+	private void copyTile(Bitmap src, Bitmap dst){
+		canvas.setBitmap(dst);
+		canvas.drawBitmap(src, 0, 0, copy);
+	}
+
+	private void recycle(Change c){
+		for(Bitmap b : c.tiles){
+			b.recycle();
+		}
+	}
+
+	//Stop using the file. Tiles just stay in memory after this.
+	private void diskFailed(IOException e){
+		Log.e("TiledCanvas", "Tile file failed, keeping tiles in memory", e);
+		diskOk = false;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Guesses where the finger is going to be a little bit from now, so the ink can be
+ * drawn out to there and look stuck to the finger. Velocity and acceleration come
+ * from the sample times and get smoothed, otherwise a shaky sample sends the guess
+ * way off. The guess is only ever drawn for one frame and never kept.
+ *
+ */
+
+package com.sajarvis.paint;
+
+public class TouchPredictor {
+	//How far ahead to guess, in ms. About a frame and a half.
+	private static final float AHEAD = 24;
+	//How much of each new sample goes into the smoothed values. Lower is smoother.
+	private static final float SMOOTH_V = 0.5f;
+	private static final float SMOOTH_A = 0.25f;
+	//Never guess further than this many pixels.
+	private static final float MAX_LEAD = 48;
+	//Samples needed before acceleration means anything.
+	private static final int MIN_SAMPLES = 3;
+
+	private float x, y;
+	private long time;
+	//Pixels per ms, and per ms squared.
+	private float vx, vy, ax, ay;
+	private int samples;
+
+	//A new mark starts here.
+	public void reset(float x, float y, long time){
+		this.x = x;
+		this.y = y;
+		this.time = time;
+		vx = vy = ax = ay = 0;
+		samples = 1;
+	}
+
+	//The finger moved.
+	public void add(float nx, float ny, long t){
+		long dt = t - time;
+		if(dt <= 0){
+			//Same time as the last one, just take the newer spot.
+			x = nx;
+			y = ny;
+			return;
+		}
+		float newVx = (nx - x)/dt;
+		float newVy = (ny - y)/dt;
+		float oldVx = vx, oldVy = vy;
+		vx += SMOOTH_V*(newVx - vx);
+		vy += SMOOTH_V*(newVy - vy);
+		if(samples > 1){
+			ax += SMOOTH_A*((vx - oldVx)/dt - ax);
+			ay += SMOOTH_A*((vy - oldVy)/dt - ay);
+		}
+		x = nx;
+		y = ny;
+		time = t;
+		samples++;
+	}
+
+	//Put the guess in out, x then y. False if there's no good guess yet.
+	public boolean predict(float[] out){
+		if(samples < MIN_SAMPLES){
+			return false;
+		}
+		float dx = vx*AHEAD + 0.5f*ax*AHEAD*AHEAD;
+		float dy = vy*AHEAD + 0.5f*ay*AHEAD*AHEAD;
+		if(dx*vx + dy*vy <= 0){
+			return false;	//Slowing to a stop, or turning back. Don't guess.
+		}
+		float len = (float)Math.sqrt(dx*dx + dy*dy);
+		if(len > MAX_LEAD){
+			dx *= MAX_LEAD/len;
+			dy *= MAX_LEAD/len;
+		}
+		out[0] = x + dx;
+		out[1] = y + dy;
+		return true;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * GNU GENERAL PUBLIC LICENSE
+ *
+ * Android Paint is a Drawing Application for Android.
+ * Copyright (C) 2014 Steve Jarvis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * Hands touches from the UI thread to the render thread without locking. Exactly one
+ * thread puts things in and one takes them out. The writer only moves tail and the
+ * reader only moves head, and both are volatile, so that's all the syncing needed.
+ *
+ */
+
+package com.sajarvis.paint;
+
+public class TouchQueue {
+	//Things that can be in the queue. The touch ones match MotionEvent.
+	public static final int DOWN = 0;
+	public static final int UP = 1;
+	public static final int MOVE = 2;
+	public static final int UNDO = 100;
+	public static final int REDO = 101;
+	public static final int CLEAR = 102;
+	public static final int LAYER = 103;	//id is which layer command
+	public static final int CHECKPOINT = 104;
+	public static final int BRUSH = 105;	//The new one is in DrawingView.mSentBrush
+	public static final int SNAPSHOT = 106;	//For the oldest in Main.snapshotTakers
+
+	//Power of two so wrapping is a mask.
+	private static final int CAPACITY = 1024;
+	private static final int MASK = CAPACITY - 1;
+
+	private final int[] actions = new int[CAPACITY];
+	private final int[] ids = new int[CAPACITY];
+	private final float[] xs = new float[CAPACITY];
+	private final float[] ys = new float[CAPACITY];
+	private final long[] times = new long[CAPACITY];
+
+	//Only counted up. Slot is the count masked.
+	private volatile int head, tail;
+
+	//Writer side. False if it's full.
+	public boolean offer(int action, int id, float x, float y, long time){
+		int t = tail;
+		if(t - head == CAPACITY){
+			return false;
+		}
+		int i = t & MASK;
+		actions[i] = action;
+		ids[i] = id;
+		xs[i] = x;
+		ys[i] = y;
+		times[i] = time;
+		tail = t + 1;	//Publishes the slot
+		return true;
+	}
+
+	//Reader side. True if there's something at the head.
+	public boolean isEmpty(){
+		return head == tail;
+	}
+
+	//Reader side. Look at the head, call poll() after.
+	public int action(){
+		return actions[head & MASK];
+	}
+	public int id(){
+		return ids[head & MASK];
+	}
+	public float x(){
+		return xs[head & MASK];
+	}
+	public float y(){
+		return ys[head & MASK];
+	}
+	public long time(){
+		return times[head & MASK];
+	}
+
+	//Reader side. Done with the head.
+	public void poll(){
+		head = head + 1;
+	}
+}